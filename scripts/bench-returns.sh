@@ -0,0 +1,79 @@
+#!/bin/sh
+# Compares the two ways functions have returned: by throwing a Return exception, and by completion status (see
+# Completion). It builds the tree just before and just after the change between them, and times return-heavy scripts
+# on the tree-walker and the closure compiler. Each script times itself with clock(); the best of RUNS runs is shown.
+#
+# usage: scripts/bench-returns.sh
+# The revisions can be set with BEFORE and AFTER, and the number of runs with RUNS.
+set -u
+
+root=$(cd "$(dirname "$0")/.." && pwd)
+AFTER=${AFTER:-$(git -C "$root" log -1 --format=%h --fixed-strings --grep='Return from functions by completion status')}
+BEFORE=${BEFORE:-$AFTER^}
+RUNS=${RUNS:-5}
+
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+
+for revision in before after; do
+    if [ $revision = before ]; then commit=$BEFORE; else commit=$AFTER; fi
+    mkdir -p "$out/$revision/src"
+    git -C "$root" archive "$commit" src | tar -x -C "$out/$revision" || exit 1
+    javac -encoding UTF-8 -nowarn -d "$out/$revision/classes" $(find "$out/$revision/src/tok" -name '*.java') || exit 1
+done
+
+# Recursion: every call returns a value.
+cat > "$out/fib.tok" <<'TOK'
+fun fib(n) {
+  if (n < 2) return n;
+  return fib(n - 1) + fib(n - 2);
+}
+var start = clock();
+fib(27);
+print clock() - start;
+TOK
+
+# Returning from inside a loop and nested blocks.
+cat > "$out/nested.tok" <<'TOK'
+fun first(n) {
+  var i = 0;
+  while (true) {
+    {
+      {
+        if (i >= n) return i;
+      }
+    }
+    i = i + 1;
+  }
+}
+var start = clock();
+for (var k = 0; k < 300000; k = k + 1) first(5);
+print clock() - start;
+TOK
+
+# Short methods, the most common return there is.
+cat > "$out/methods.tok" <<'TOK'
+class Counter {
+  init() { this.count = 0; }
+  get() { return this.count; }
+  add(n) { this.count = this.count + n; return this; }
+}
+var counter = Counter();
+var start = clock();
+for (var k = 0; k < 500000; k = k + 1) counter.add(counter.get() - k);
+print clock() - start;
+TOK
+
+best() {
+    for run in $(seq "$RUNS"); do
+        java -cp "$out/$1/classes" tok.tok $2 "$out/$3.tok" | tail -n 1
+    done | sort -n | head -n 1 | cut -c 1-5
+}
+
+echo "seconds, best of $RUNS: exceptions ($BEFORE) vs completions ($AFTER)"
+for script in fib nested methods; do
+    for engine in "" --compile; do
+        printf '%-8s %-10s %s -> %s\n' "$script" "${engine:-default}" \
+            "$(best before "$engine" $script)" "$(best after "$engine" $script)"
+    done
+done
@@ -0,0 +1,40 @@
+#!/bin/sh
+# Checks that a plain, non-tail recursive Tok function can still recurse as deep as the tree-walking interpreter
+# originally could, on every engine. Each JVM mode is pinned, along with the stack size, so that the depth does not
+# depend on when the JIT happens to compile what: -Xint only interprets, -Xbatch compiles everything up front.
+#
+# usage: scripts/check-recursion-depth.sh
+# The depths to reach can be set with INT_DEPTH and BATCH_DEPTH; they default to what the original tree-walker reached
+# with a 1MB stack on OpenJDK 17.
+set -u
+
+INT_DEPTH=${INT_DEPTH:-688}
+BATCH_DEPTH=${BATCH_DEPTH:-761}
+
+root=$(cd "$(dirname "$0")/.." && pwd)
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+
+javac -encoding UTF-8 -nowarn -d "$out/classes" $(find "$root/src/tok" -name '*.java') || exit 1
+
+status=0
+check() {
+    mode=$1
+    depth=$2
+    shift 2
+    echo "fun g(n) { if (n == 0) return 0; return 1 + g(n - 1); } print g($depth);" > "$out/depth.tok"
+    result=$(java -Xss1m "$mode" -cp "$out/classes" tok.tok "$@" "$out/depth.tok" 2>&1 | head -n 1)
+    if [ "$result" = "$depth" ]; then
+        echo "ok    $mode $* g($depth)"
+    else
+        echo "FAIL  $mode $* g($depth): $result"
+        status=1
+    fi
+}
+
+for engine in "" --specialize --compile --vm; do
+    check -Xint "$INT_DEPTH" $engine
+    check -Xbatch "$BATCH_DEPTH" $engine
+done
+
+exit $status
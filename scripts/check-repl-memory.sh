@@ -0,0 +1,46 @@
+#!/bin/sh
+# Checks that the REPL runs in bounded memory: a million generated lines - variable, function and class definitions,
+# blocks, closures and calls - are piped into it on every engine with a 16MB heap. The lines reuse a hundred global
+# names, so a REPL that lets go of each line once it has run needs no more memory at the end than after the first
+# thousand lines.
+#
+# usage: scripts/check-repl-memory.sh
+# The number of lines can be set with LINES.
+set -u
+
+LINES=${LINES:-1000000}
+
+root=$(cd "$(dirname "$0")/.." && pwd)
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+
+javac -encoding UTF-8 -nowarn -d "$out/classes" $(find "$root/src/tok" -name '*.java') || exit 1
+
+awk -v lines="$LINES" 'BEGIN {
+    for (i = 0; i < lines; i++) {
+        n = int(i / 8) % 100;
+        kind = i % 8;
+        if (kind == 0) print "var v" n " = " i ";";
+        else if (kind == 1) print "fun f" n "(a) { var b = a * 2; return b + " i "; }";
+        else if (kind == 2) print "print f" n "(v" n ");";
+        else if (kind == 3) print "class C" n " { init(x) { this.x = x; } get() { return this.x + " i "; } }";
+        else if (kind == 4) print "print C" n "(" i ").get();";
+        else if (kind == 5) print "{ var s = \"line " i "\"; print s + \"!\"; }";
+        else if (kind == 6) print "fun g" n "() { var c = " i "; fun h() { return c; } return h; }";
+        else print "print g" n "()();";
+    }
+}' > "$out/lines.tok"
+
+status=0
+for engine in "" --specialize --compile --vm; do
+    java -Xmx16m -cp "$out/classes" tok.tok $engine < "$out/lines.tok" > /dev/null 2> "$out/errors.txt"
+    code=$?
+    if [ $code -eq 0 ] && [ ! -s "$out/errors.txt" ]; then
+        echo "ok    $engine $LINES lines"
+    else
+        echo "FAIL  $engine $LINES lines, exit status $code: $(head -n 1 "$out/errors.txt")"
+        status=1
+    fi
+done
+
+exit $status
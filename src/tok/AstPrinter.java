@@ -7,7 +7,7 @@ class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitBinaryExpr(Expr.Binary expr) {
-        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+        return parenthesize(expr.operator.lexeme(), expr.left, expr.right);
     }
 
     @Override
@@ -23,7 +23,7 @@ class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitUnaryExpr(Expr.Unary expr) {
-        return parenthesize(expr.operator.lexeme, expr.right);
+        return parenthesize(expr.operator.lexeme(), expr.right);
     }
 
     private String parenthesize(String name, Expr... exprs) {
@@ -43,17 +43,17 @@ class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitVariableExpr(Expr.Variable expr) {
-        return parenthesize(expr.name.lexeme, expr);
+        return parenthesize(expr.name.lexeme(), expr);
     }
 
     @Override
     public String visitAssignExpr(Expr.Assign expr) {
-        return parenthesize("assign " + expr.name.lexeme, expr.value);
+        return parenthesize("assign " + expr.name.lexeme(), expr.value);
     }
 
     @Override
     public String visitLogicalExpr(Expr.Logical expr) {
-        return parenthesize(expr.operator.lexeme, expr.left, expr.right);
+        return parenthesize(expr.operator.lexeme(), expr.left, expr.right);
     }
 
     @Override
@@ -63,12 +63,12 @@ class AstPrinter implements Expr.Visitor<String> {
 
     @Override
     public String visitGetExpr(Expr.Get expr) {
-        return parenthesize("Get " + expr.name.lexeme + " on ", expr.object);
+        return parenthesize("Get " + expr.name.lexeme() + " on ", expr.object);
     }
 
     @Override
     public String visitSetExpr(Expr.Set expr) {
-        return parenthesize("Set " + expr.name.lexeme + " to ", expr.value);
+        return parenthesize("Set " + expr.name.lexeme() + " to ", expr.value);
     }
 
     @Override
@@ -0,0 +1,126 @@
+package tok;
+
+enum BinarySpecialization {
+    /*
+     * In specializing mode, every Expr.Binary node rewrites itself on its first execution into the specialization that
+     * fits the operand types it saw: the operator is baked in and the type check shrinks to a single guard.
+     * If the guard ever fails the node deoptimizes to GENERIC for good, which runs the operator through the
+     * interpreter's full type dispatch - so results and errors are always exactly those of the generic path. Each
+     * specialization is handed the operator, which only GENERIC needs.
+     */
+
+    NUMBER_ADD {
+        @Override
+        Object execute(Token operator, Object left, Object right) {
+            return (double) left + (double) right;
+        }
+    },
+    NUMBER_SUBTRACT {
+        @Override
+        Object execute(Token operator, Object left, Object right) {
+            return (double) left - (double) right;
+        }
+    },
+    NUMBER_MULTIPLY {
+        @Override
+        Object execute(Token operator, Object left, Object right) {
+            return (double) left * (double) right;
+        }
+    },
+    NUMBER_DIVIDE {
+        @Override
+        boolean accepts(Object left, Object right) {
+            // Division by zero is an error, which is the generic path's job to report.
+            return super.accepts(left, right) && (double) right != 0.0;
+        }
+
+        @Override
+        Object execute(Token operator, Object left, Object right) {
+            return (double) left / (double) right;
+        }
+    },
+    NUMBER_GREATER {
+        @Override
+        Object execute(Token operator, Object left, Object right) {
+            return (double) left > (double) right;
+        }
+    },
+    NUMBER_GREATER_EQUAL {
+        @Override
+        Object execute(Token operator, Object left, Object right) {
+            return (double) left >= (double) right;
+        }
+    },
+    NUMBER_LESS {
+        @Override
+        Object execute(Token operator, Object left, Object right) {
+            return (double) left < (double) right;
+        }
+    },
+    NUMBER_LESS_EQUAL {
+        @Override
+        Object execute(Token operator, Object left, Object right) {
+            return (double) left <= (double) right;
+        }
+    },
+    STRING_CONCAT {
+        @Override
+        boolean accepts(Object left, Object right) {
+            return left instanceof String && right instanceof String;
+        }
+
+        @Override
+        Object execute(Token operator, Object left, Object right) {
+            return (String) left + (String) right;
+        }
+    },
+    // Any operands: the interpreter's full type dispatch.
+    GENERIC {
+        @Override
+        boolean accepts(Object left, Object right) {
+            return true;
+        }
+
+        @Override
+        Object execute(Token operator, Object left, Object right) {
+            return Interpreter.binary(operator, left, right);
+        }
+    };
+
+    // The guard: whether execute() is valid for these operands. The number specializations share this one.
+    boolean accepts(Object left, Object right) {
+        return left instanceof Double && right instanceof Double;
+    }
+
+    abstract Object execute(Token operator, Object left, Object right);
+
+    static BinarySpecialization select(TokenType operator, Object left, Object right) {
+        if (left instanceof Double && right instanceof Double) {
+            switch (operator) {
+                case PLUS:
+                    return NUMBER_ADD;
+                case MINUS:
+                    return NUMBER_SUBTRACT;
+                case STAR:
+                    return NUMBER_MULTIPLY;
+                case SLASH:
+                    return NUMBER_DIVIDE;
+                case GREATER:
+                    return NUMBER_GREATER;
+                case GREATER_EQUAL:
+                    return NUMBER_GREATER_EQUAL;
+                case LESS:
+                    return NUMBER_LESS;
+                case LESS_EQUAL:
+                    return NUMBER_LESS_EQUAL;
+            }
+        }
+
+        if (operator == TokenType.PLUS && left instanceof String && right instanceof String) {
+            return STRING_CONCAT;
+        }
+
+        // Equality works on any operands, and anything else here is about to be a type error.
+        return GENERIC;
+    }
+}
@@ -0,0 +1,1119 @@
+package tok;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.ExprNode>, Stmt.Visitor<ClosureCompiler.StmtNode> {
+    /*
+     * The ClosureCompiler walks the resolved AST once and turns it into a tree of Java closures. Every decision the
+     * Interpreter makes each time it visits a node - which node kind it is, which operator, whether a variable is a
+     * global or which slot it lives in - is taken here, at compile time, and baked into the closure.
+     * Executing the program is then a matter of calling straight into the closures.
+     *
+     * Compiled code runs on the same runtime as the Interpreter: frames and Environments, TokFunctions and TokClasses.
+     */
+
+    interface ExprNode {
+        Object evaluate(Object[] frame, Environment environment);
+    }
+
+    /*
+     * An expression that can only produce a number, or fail: a number literal, a negation, or an arithmetic operator.
+     * It also hands its value over as a primitive double, so arithmetic on the result of arithmetic (a * b + c * d,
+     * x * x < n) never boxes the intermediate numbers. Only evaluating it as an object boxes the result.
+     */
+    interface NumberNode extends ExprNode {
+        double evaluateNumber(Object[] frame, Environment environment);
+
+        @Override
+        default Object evaluate(Object[] frame, Environment environment) {
+            return evaluateNumber(frame, environment);
+        }
+    }
+
+    // A number literal hands out its one box when evaluated as an object.
+    private static final class NumberLiteral implements NumberNode {
+        private final Double value;
+
+        NumberLiteral(Double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double evaluateNumber(Object[] frame, Environment environment) {
+            return value;
+        }
+
+        @Override
+        public Object evaluate(Object[] frame, Environment environment) {
+            return value;
+        }
+    }
+
+    /*
+     * A number expression that can also hand its value over as a primitive long: an integral literal, the counter of
+     * a counted loop, and +, - and * on those. The long channel only carries integers below 2^53 in magnitude, which a
+     * double holds exactly, so both channels agree on every value. Anything else - a fraction, a product past 2^53,
+     * a -0 - comes out as NOT_LONG, and the value is then taken from the double channel.
+     * These expressions cannot fail or have side effects, so evaluating one again on the other channel is safe.
+     */
+    interface LongNode extends NumberNode {
+        long NOT_LONG = Long.MIN_VALUE;
+
+        long evaluateLong(Object[] frame, Environment environment);
+    }
+
+    private static final class LongLiteral implements LongNode {
+        private final Double value;
+        private final long longValue;
+
+        LongLiteral(Double value) {
+            this.value = value;
+            this.longValue = (long) (double) value;
+        }
+
+        @Override
+        public long evaluateLong(Object[] frame, Environment environment) {
+            return longValue;
+        }
+
+        @Override
+        public double evaluateNumber(Object[] frame, Environment environment) {
+            return value;
+        }
+
+        @Override
+        public Object evaluate(Object[] frame, Environment environment) {
+            return value;
+        }
+    }
+
+    // The frame slot of a counted loop's counter holds one of these while the counter runs on a long, so the loop
+    // does not box a Double for every iteration. Only the loop body reads the slot, through a CounterRead.
+    private static final class Counter {
+        long value;
+
+        Counter(long value) {
+            this.value = value;
+        }
+    }
+
+    private static final class CounterRead implements LongNode {
+        private final int slot;
+
+        CounterRead(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        public long evaluateLong(Object[] frame, Environment environment) {
+            Object value = frame[slot];
+            return value instanceof Counter ? ((Counter) value).value : NOT_LONG;
+        }
+
+        @Override
+        public double evaluateNumber(Object[] frame, Environment environment) {
+            Object value = frame[slot];
+            if (value instanceof Counter) return ((Counter) value).value;
+            return (double) value;
+        }
+
+        @Override
+        public Object evaluate(Object[] frame, Environment environment) {
+            Object value = frame[slot];
+            if (value instanceof Counter) return (double) ((Counter) value).value;
+            return value;
+        }
+    }
+
+    interface StmtNode {
+        Completion execute(Object[] frame, Environment environment);
+    }
+
+    private final Interpreter interpreter;
+
+    // The frame slots of the counted loop counters in scope, in the function being compiled.
+    private Set<Integer> counters = new HashSet<>();
+
+    ClosureCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    StmtNode compile(List<Stmt> statements) {
+        return sequence(statements);
+    }
+
+    private ExprNode compile(Expr expr) {
+        return expr.accept(this);
+    }
+
+    private StmtNode compile(Stmt stmt) {
+        return stmt.accept(this);
+    }
+
+    private StmtNode sequence(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = compile(statements.get(i));
+        }
+
+        if (nodes.length == 1) return nodes[0];
+        return (frame, environment) -> {
+            for (StmtNode node : nodes) {
+                if (node.execute(frame, environment) == Completion.RETURN) return Completion.RETURN;
+            }
+            return Completion.NORMAL;
+        };
+    }
+
+    // Statements.
+
+    @Override
+    public StmtNode visitBlockStmt(Stmt.Block stmt) {
+        StmtNode body = sequence(stmt.statements);
+        // A block whose locals all live in the frame is just its statements.
+        if (stmt.environmentSize == 0) return body;
+
+        int size = stmt.environmentSize;
+        return (frame, environment) -> body.execute(frame, new Environment(environment, size));
+    }
+
+    @Override
+    public StmtNode visitClassStmt(Stmt.Class stmt) {
+        String name = stmt.name.lexeme();
+        Definition definition = definition(stmt.name, stmt.depth, stmt.slot);
+        ExprNode superclassNode = stmt.superclass != null ? compile(stmt.superclass) : null;
+        Token superclassName = stmt.superclass != null ? stmt.superclass.name : null;
+
+        int methodCount = stmt.methods.size();
+        Stmt.Function[] declarations = stmt.methods.toArray(new Stmt.Function[methodCount]);
+        StmtNode[] bodies = new StmtNode[methodCount];
+        for (int i = 0; i < methodCount; i++) {
+            bodies[i] = functionBody(declarations[i].body);
+        }
+
+        return (frame, environment) -> {
+            Object superclass = null;
+            if (superclassNode != null) {
+                superclass = superclassNode.evaluate(frame, environment);
+                if (!(superclass instanceof TokClass)) {
+                    throw new RuntimeError(superclassName, "Superclass must be a class (duh).");
+                }
+            }
+
+            Environment methodEnvironment = environment;
+            if (superclass != null) {
+                methodEnvironment = new Environment(environment, 1);
+                methodEnvironment.define(superclass);
+            }
+
+            Map<String, TokFunction> methods = new HashMap<>();
+            for (int i = 0; i < methodCount; i++) {
+                String methodName = declarations[i].name.lexeme();
+                methods.put(methodName, new TokFunction(declarations[i], methodEnvironment, bodies[i],
+                        methodName.equals("init")));
+            }
+
+            definition.define(frame, environment, new TokClass(name, (TokClass) superclass, methods));
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+        ExprNode expression = compile(stmt.expression);
+        return (frame, environment) -> {
+            expression.evaluate(frame, environment);
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+        Definition definition = definition(stmt.name, stmt.depth, stmt.slot);
+        StmtNode body = functionBody(stmt.body);
+        return (frame, environment) -> {
+            definition.define(frame, environment, new TokFunction(stmt, environment, body));
+            return Completion.NORMAL;
+        };
+    }
+
+    // A function has a frame of its own, whose slots are not the enclosing function's counters.
+    private StmtNode functionBody(List<Stmt> body) {
+        Set<Integer> enclosing = counters;
+        counters = new HashSet<>();
+        try {
+            return sequence(body);
+        } finally {
+            counters = enclosing;
+        }
+    }
+
+    @Override
+    public StmtNode visitIfStmt(Stmt.If stmt) {
+        ExprNode condition = compile(stmt.condition);
+        StmtNode thenBranch = compile(stmt.thenBranch);
+
+        if (stmt.elseBranch == null) {
+            return (frame, environment) -> {
+                if (Interpreter.isTruthy(condition.evaluate(frame, environment))) return thenBranch.execute(frame, environment);
+                return Completion.NORMAL;
+            };
+        }
+
+        StmtNode elseBranch = compile(stmt.elseBranch);
+        return (frame, environment) -> {
+            if (Interpreter.isTruthy(condition.evaluate(frame, environment))) {
+                return thenBranch.execute(frame, environment);
+            } else {
+                return elseBranch.execute(frame, environment);
+            }
+        };
+    }
+
+    @Override
+    public StmtNode visitPrintStmt(Stmt.Print stmt) {
+        ExprNode expression = compile(stmt.expression);
+        return (frame, environment) -> {
+            System.out.println(Interpreter.stringify(expression.evaluate(frame, environment)));
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.value == null) {
+            return (frame, environment) -> {
+                interpreter.setReturnValue(null);
+                return Completion.RETURN;
+            };
+        }
+
+        ExprNode value = stmt.value instanceof Expr.Call ? tailCall((Expr.Call) stmt.value) : compile(stmt.value);
+        return (frame, environment) -> {
+            interpreter.setReturnValue(value.evaluate(frame, environment));
+            return Completion.RETURN;
+        };
+    }
+
+    // A call in tail position to a Tok function is left to the function being returned from, like the Interpreter
+    // does, and anything else is called on the spot. Tail calls take the array path for their arguments: they only
+    // evaluate into an array when they call something else.
+    private ExprNode tailCall(Expr.Call expr) {
+        ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        Token paren = expr.paren;
+
+        if (expr.callee instanceof Expr.Get) {
+            ExprNode object = compile(((Expr.Get) expr.callee).object);
+            Token name = ((Expr.Get) expr.callee).name;
+            PropertyCache cache = ((Expr.Get) expr.callee).cache;
+            return (frame, environment) -> {
+                TokInstance receiver = receiver(object.evaluate(frame, environment), name);
+                TokFunction method = receiver.findMethod(name, cache);
+                if (method != null && method.arity() == arguments.length) {
+                    return tailCall(method, method.frame(receiver), arguments, frame, environment);
+                }
+
+                Object function = method != null ? method : receiver.get(name, cache);
+                Object[] values = evaluate(arguments, frame, environment);
+                TokCallable callable = Interpreter.checkCall(paren, function, values.length);
+                if (method != null) return method.invoke(interpreter, receiver, values);
+                return callable.call(interpreter, values);
+            };
+        }
+
+        ExprNode callee = compile(expr.callee);
+        return (frame, environment) -> {
+            Object function = callee.evaluate(frame, environment);
+            if (function instanceof TokFunction && ((TokFunction) function).arity() == arguments.length) {
+                TokFunction target = (TokFunction) function;
+                return tailCall(target, target.frame(), arguments, frame, environment);
+            }
+
+            Object[] values = evaluate(arguments, frame, environment);
+            return Interpreter.checkCall(paren, function, values.length).call(interpreter, values);
+        };
+    }
+
+    private Object tailCall(TokFunction function, Object[] calleeFrame, ExprNode[] arguments, Object[] frame,
+                            Environment environment) {
+        for (int i = 0; i < arguments.length; i++) {
+            calleeFrame[function.parameterSlot + i] = arguments[i].evaluate(frame, environment);
+        }
+        return interpreter.tailCall(function, calleeFrame);
+    }
+
+    @Override
+    public StmtNode visitVarStmt(Stmt.Var stmt) {
+        Definition definition = definition(stmt.name, stmt.depth, stmt.slot);
+        if (stmt.initializer == null) {
+            return (frame, environment) -> {
+                definition.define(frame, environment, null);
+                return Completion.NORMAL;
+            };
+        }
+
+        ExprNode initializer = compile(stmt.initializer);
+        return (frame, environment) -> {
+            definition.define(frame, environment, initializer.evaluate(frame, environment));
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitForStmt(Stmt.For stmt) {
+        StmtNode initializer = stmt.initializer != null ? compile(stmt.initializer) : null;
+        ExprNode condition = stmt.condition != null ? compile(stmt.condition) : null;
+        ExprNode increment = stmt.increment != null ? compile(stmt.increment) : null;
+        StmtNode body;
+        if (stmt.counted) {
+            // Only the body reads the counter through a CounterRead: it runs once the condition has found the counter
+            // to be a number, while the condition and increment still see whatever the initializer stored.
+            int slot = ((Stmt.Var) stmt.initializer).slot;
+            counters.add(slot);
+            body = compile(stmt.body);
+            counters.remove(slot);
+        } else {
+            body = compile(stmt.body);
+        }
+
+        StmtNode loop = (frame, environment) -> {
+            while (condition == null || Interpreter.isTruthy(condition.evaluate(frame, environment))) {
+                if (body.execute(frame, environment) == Completion.RETURN) return Completion.RETURN;
+                if (increment != null) increment.evaluate(frame, environment);
+            }
+            return Completion.NORMAL;
+        };
+        if (stmt.counted) loop = countedLoop(stmt, loop, body);
+
+        StmtNode forLoop;
+        if (initializer == null) {
+            forLoop = loop;
+        } else {
+            StmtNode rest = loop;
+            forLoop = (frame, environment) -> {
+                initializer.execute(frame, environment);
+                return rest.execute(frame, environment);
+            };
+        }
+
+        if (stmt.environmentSize == 0) return forLoop;
+
+        int size = stmt.environmentSize;
+        return (frame, environment) -> forLoop.execute(frame, new Environment(environment, size));
+    }
+
+    // A counted loop (see Resolver) whose counter starts out as a number keeps the counter in a primitive, and only
+    // stores it in its frame slot for the body to read. An integral counter, step and bound run on a long, which the
+    // slot holds in a Counter.
+    private StmtNode countedLoop(Stmt.For stmt, StmtNode loop, StmtNode body) {
+        int slot = ((Stmt.Var) stmt.initializer).slot;
+        Expr.Binary condition = (Expr.Binary) stmt.condition;
+        TokenType comparison = condition.operator.type;
+        double bound = (double) ((Expr.Literal) condition.right).value;
+        Expr.Binary increment = (Expr.Binary) ((Expr.Assign) stmt.increment).value;
+        double step = increment.operator.type == TokenType.MINUS
+                ? -(double) ((Expr.Literal) increment.right).value
+                : (double) ((Expr.Literal) increment.right).value;
+        boolean integral = Interpreter.isLong(bound) && Interpreter.isLong(step);
+        long longBound = (long) bound;
+        long longStep = (long) step;
+
+        return (frame, environment) -> {
+            if (!(frame[slot] instanceof Double)) return loop.execute(frame, environment);
+
+            double start = (double) frame[slot];
+            if (integral && Interpreter.isLong(start)) {
+                Counter counter = new Counter((long) start);
+                frame[slot] = counter;
+                while (Interpreter.compare(comparison, counter.value, longBound)) {
+                    if (body.execute(frame, environment) == Completion.RETURN) return Completion.RETURN;
+                    counter.value += longStep;
+                    if (counter.value <= -Interpreter.MAX_LONG || counter.value >= Interpreter.MAX_LONG) break;
+                }
+                // The loop either ended, which the double loop sees as well, or the counter passed 2^53, where a long
+                // no longer rounds the way a double does, and carries on as a double.
+                start = counter.value;
+                frame[slot] = start;
+            }
+
+            double counter = start;
+            while (Interpreter.compare(comparison, counter, bound)) {
+                if (body.execute(frame, environment) == Completion.RETURN) return Completion.RETURN;
+                counter += step;
+                frame[slot] = counter;
+            }
+            return Completion.NORMAL;
+        };
+    }
+
+    @Override
+    public StmtNode visitWhileStmt(Stmt.While stmt) {
+        ExprNode condition = compile(stmt.condition);
+        StmtNode body = compile(stmt.body);
+        return (frame, environment) -> {
+            while (Interpreter.isTruthy(condition.evaluate(frame, environment))) {
+                if (body.execute(frame, environment) == Completion.RETURN) return Completion.RETURN;
+            }
+            return Completion.NORMAL;
+        };
+    }
+
+    // Expressions.
+
+    @Override
+    public ExprNode visitAssignExpr(Expr.Assign expr) {
+        ExprNode value = compile(expr.value);
+        Token name = expr.name;
+        int depth = expr.depth;
+        int slot = expr.slot;
+
+        if (depth == Resolver.FRAME) {
+            return (frame, environment) -> {
+                Object result = value.evaluate(frame, environment);
+                frame[slot] = result;
+                return result;
+            };
+        }
+
+        if (depth == Resolver.GLOBAL) {
+            Environment globals = interpreter.globals;
+            return (frame, environment) -> {
+                Object result = value.evaluate(frame, environment);
+                globals.assign(name, result);
+                return result;
+            };
+        }
+
+        return (frame, environment) -> {
+            Object result = value.evaluate(frame, environment);
+            environment.assignAt(depth, slot, result);
+            return result;
+        };
+    }
+
+    @Override
+    public ExprNode visitBinaryExpr(Expr.Binary expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+        Token operator = expr.operator;
+
+        // Operators that can only work on numbers use the number channel of their operands.
+        switch (operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                if (left instanceof NumberNode || right instanceof NumberNode) {
+                    return comparison(operator, left, right);
+                }
+                break;
+            case MINUS:
+            case SLASH:
+            case STAR:
+                return arithmetic(operator, left, right);
+            case PLUS:
+                // Adding anything to a number either makes a number or fails.
+                if (left instanceof NumberNode || right instanceof NumberNode) {
+                    return arithmetic(operator, left, right);
+                }
+                break;
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                if (left instanceof LongNode && right instanceof LongNode) {
+                    return longEquality(operator, (LongNode) left, (LongNode) right);
+                }
+                break;
+        }
+
+        switch (operator.type) {
+            case GREATER:
+                return (frame, environment) -> {
+                    Object a = left.evaluate(frame, environment);
+                    Object b = right.evaluate(frame, environment);
+                    Interpreter.checkNumberOperand(operator, a, b);
+                    return (double) a > (double) b;
+                };
+            case GREATER_EQUAL:
+                return (frame, environment) -> {
+                    Object a = left.evaluate(frame, environment);
+                    Object b = right.evaluate(frame, environment);
+                    Interpreter.checkNumberOperand(operator, a, b);
+                    return (double) a >= (double) b;
+                };
+            case LESS:
+                return (frame, environment) -> {
+                    Object a = left.evaluate(frame, environment);
+                    Object b = right.evaluate(frame, environment);
+                    Interpreter.checkNumberOperand(operator, a, b);
+                    return (double) a < (double) b;
+                };
+            case LESS_EQUAL:
+                return (frame, environment) -> {
+                    Object a = left.evaluate(frame, environment);
+                    Object b = right.evaluate(frame, environment);
+                    Interpreter.checkNumberOperand(operator, a, b);
+                    return (double) a <= (double) b;
+                };
+            case BANG_EQUAL:
+                return (frame, environment) -> {
+                    Object a = left.evaluate(frame, environment);
+                    Object b = right.evaluate(frame, environment);
+                    return !Interpreter.isEqual(a, b);
+                };
+            case EQUAL_EQUAL:
+                return (frame, environment) -> {
+                    Object a = left.evaluate(frame, environment);
+                    Object b = right.evaluate(frame, environment);
+                    return Interpreter.isEqual(a, b);
+                };
+            case PLUS:
+                return (frame, environment) -> {
+                    Object a = left.evaluate(frame, environment);
+                    Object b = right.evaluate(frame, environment);
+                    if (a instanceof Double && b instanceof Double) {
+                        return (double) a + (double) b;
+                    }
+
+                    if (a instanceof String && b instanceof String) {
+                        return (String) a + (String) b;
+                    }
+
+                    throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
+                };
+        }
+
+        // Unreachable.
+        return null;
+    }
+
+    // Each operand that is a NumberNode is evaluated to a double, any other one is evaluated as an object and checked
+    // once both operands have been evaluated, like the Interpreter does.
+    private NumberNode arithmetic(Token operator, ExprNode left, ExprNode right) {
+        if (left instanceof LongNode && right instanceof LongNode && operator.type != TokenType.SLASH) {
+            return new LongArithmetic(operator, (LongNode) left, (LongNode) right);
+        }
+
+        if (left instanceof NumberNode && right instanceof NumberNode) {
+            NumberNode a = (NumberNode) left;
+            NumberNode b = (NumberNode) right;
+            return (frame, environment) ->
+                    arithmetic(operator, a.evaluateNumber(frame, environment), b.evaluateNumber(frame, environment));
+        }
+
+        return new Arithmetic(operator, left, right);
+    }
+
+    /*
+     * An arithmetic operator with an operand that is not a NumberNode, and so may well be a call: 1 + f(n - 1).
+     * It is as often evaluated as an object as to a double, and evaluate() does not go through evaluateNumber() the
+     * way NumberNode's does, since every Java frame kept on the stack while the call runs costs recursion depth.
+     */
+    private static final class Arithmetic implements NumberNode {
+        private final Token operator;
+        private final ExprNode left;
+        private final ExprNode right;
+        // The operands that are NumberNodes, null for the others.
+        private final NumberNode leftNumber;
+        private final NumberNode rightNumber;
+
+        Arithmetic(Token operator, ExprNode left, ExprNode right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+            this.leftNumber = left instanceof NumberNode ? (NumberNode) left : null;
+            this.rightNumber = right instanceof NumberNode ? (NumberNode) right : null;
+        }
+
+        @Override
+        public Object evaluate(Object[] frame, Environment environment) {
+            if (leftNumber != null) {
+                double x = leftNumber.evaluateNumber(frame, environment);
+                return apply(x, right.evaluate(frame, environment));
+            }
+
+            Object x = left.evaluate(frame, environment);
+            if (rightNumber != null) return apply(x, rightNumber.evaluateNumber(frame, environment));
+            return apply(x, right.evaluate(frame, environment));
+        }
+
+        @Override
+        public double evaluateNumber(Object[] frame, Environment environment) {
+            if (leftNumber != null) {
+                double x = leftNumber.evaluateNumber(frame, environment);
+                return apply(x, right.evaluate(frame, environment));
+            }
+
+            Object x = left.evaluate(frame, environment);
+            if (rightNumber != null) return apply(x, rightNumber.evaluateNumber(frame, environment));
+            return apply(x, right.evaluate(frame, environment));
+        }
+
+        private double apply(double x, Object y) {
+            if (!(y instanceof Double)) throw operandError(operator);
+            return arithmetic(operator, x, (double) y);
+        }
+
+        private double apply(Object x, double y) {
+            if (!(x instanceof Double)) throw operandError(operator);
+            return arithmetic(operator, (double) x, y);
+        }
+
+        private double apply(Object x, Object y) {
+            if (!(x instanceof Double && y instanceof Double)) throw operandError(operator);
+            return arithmetic(operator, (double) x, (double) y);
+        }
+    }
+
+    // +, - or * on two LongNodes, on longs for as long as the result stays exact in a double.
+    private static final class LongArithmetic implements LongNode {
+        private final Token operator;
+        private final LongNode left;
+        private final LongNode right;
+
+        LongArithmetic(Token operator, LongNode left, LongNode right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public long evaluateLong(Object[] frame, Environment environment) {
+            long x = left.evaluateLong(frame, environment);
+            if (x == NOT_LONG) return NOT_LONG;
+            long y = right.evaluateLong(frame, environment);
+            if (y == NOT_LONG) return NOT_LONG;
+
+            long result;
+            switch (operator.type) {
+                case MINUS:
+                    result = x - y;
+                    break;
+                case STAR:
+                    // A zero product with a negative factor is -0. A product the double rounds is past 2^53 anyway.
+                    if ((x == 0 && y < 0) || (y == 0 && x < 0)) return NOT_LONG;
+                    if (Math.abs((double) x * (double) y) >= Interpreter.MAX_LONG) return NOT_LONG;
+                    result = x * y;
+                    break;
+                default:
+                    result = x + y;
+                    break;
+            }
+            return result > -Interpreter.MAX_LONG && result < Interpreter.MAX_LONG ? result : NOT_LONG;
+        }
+
+        @Override
+        public double evaluateNumber(Object[] frame, Environment environment) {
+            long result = evaluateLong(frame, environment);
+            if (result != NOT_LONG) return result;
+            return arithmetic(operator, left.evaluateNumber(frame, environment), right.evaluateNumber(frame, environment));
+        }
+    }
+
+    private static double arithmetic(Token operator, double left, double right) {
+        switch (operator.type) {
+            case MINUS:
+                return left - right;
+            case STAR:
+                return left * right;
+            case SLASH:
+                if (right == 0.0) {
+                    throw new RuntimeError(operator, "Cannot divide by 0.");
+                }
+                return left / right;
+            default:
+                return left + right;
+        }
+    }
+
+    // A comparison with a NumberNode on either side, which is evaluated to a double.
+    private ExprNode comparison(Token operator, ExprNode left, ExprNode right) {
+        TokenType type = operator.type;
+
+        if (left instanceof LongNode && right instanceof LongNode) {
+            LongNode a = (LongNode) left;
+            LongNode b = (LongNode) right;
+            return (frame, environment) -> {
+                long x = a.evaluateLong(frame, environment);
+                long y = b.evaluateLong(frame, environment);
+                if (x != LongNode.NOT_LONG && y != LongNode.NOT_LONG) return Interpreter.compare(type, x, y);
+                return Interpreter.compare(type, a.evaluateNumber(frame, environment), b.evaluateNumber(frame, environment));
+            };
+        }
+
+        if (left instanceof NumberNode && right instanceof NumberNode) {
+            NumberNode a = (NumberNode) left;
+            NumberNode b = (NumberNode) right;
+            return (frame, environment) ->
+                    Interpreter.compare(type, a.evaluateNumber(frame, environment), b.evaluateNumber(frame, environment));
+        }
+
+        if (left instanceof NumberNode) {
+            NumberNode a = (NumberNode) left;
+            return (frame, environment) -> {
+                double x = a.evaluateNumber(frame, environment);
+                Object y = right.evaluate(frame, environment);
+                if (!(y instanceof Double)) throw operandError(operator);
+                return Interpreter.compare(type, x, (double) y);
+            };
+        }
+
+        NumberNode b = (NumberNode) right;
+        return (frame, environment) -> {
+            Object x = left.evaluate(frame, environment);
+            double y = b.evaluateNumber(frame, environment);
+            if (!(x instanceof Double)) throw operandError(operator);
+            return Interpreter.compare(type, (double) x, y);
+        };
+    }
+
+    private static ExprNode longEquality(Token operator, LongNode a, LongNode b) {
+        boolean equal = operator.type == TokenType.EQUAL_EQUAL;
+        return (frame, environment) -> {
+            long x = a.evaluateLong(frame, environment);
+            long y = b.evaluateLong(frame, environment);
+            if (x != LongNode.NOT_LONG && y != LongNode.NOT_LONG) return (x == y) == equal;
+            return Interpreter.isEqual(a.evaluate(frame, environment), b.evaluate(frame, environment)) == equal;
+        };
+    }
+
+    private static RuntimeError operandError(Token operator) {
+        if (operator.type == TokenType.PLUS) {
+            return new RuntimeError(operator, "Operands must be two numbers or two strings.");
+        }
+        return new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    @Override
+    public ExprNode visitCallExpr(Expr.Call expr) {
+        ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+        for (int i = 0; i < arguments.length; i++) {
+            arguments[i] = compile(expr.arguments.get(i));
+        }
+        Token paren = expr.paren;
+
+        if (expr.callee instanceof Expr.Get) {
+            return methodCall((Expr.Get) expr.callee, arguments, paren);
+        }
+
+        return call(compile(expr.callee), arguments, paren);
+    }
+
+    // Up to four arguments are evaluated into locals and passed to the callable's fixed-arity entry point.
+    private ExprNode call(ExprNode callee, ExprNode[] arguments, Token paren) {
+        switch (arguments.length) {
+            case 0:
+                return (frame, environment) -> Interpreter.checkCall(paren, callee.evaluate(frame, environment), 0).call0(interpreter);
+            case 1: {
+                ExprNode first = arguments[0];
+                return (frame, environment) -> {
+                    Object function = callee.evaluate(frame, environment);
+                    Object a = first.evaluate(frame, environment);
+                    return Interpreter.checkCall(paren, function, 1).call1(interpreter, a);
+                };
+            }
+            case 2: {
+                ExprNode first = arguments[0];
+                ExprNode second = arguments[1];
+                return (frame, environment) -> {
+                    Object function = callee.evaluate(frame, environment);
+                    Object a = first.evaluate(frame, environment);
+                    Object b = second.evaluate(frame, environment);
+                    return Interpreter.checkCall(paren, function, 2).call2(interpreter, a, b);
+                };
+            }
+            case 3: {
+                ExprNode first = arguments[0];
+                ExprNode second = arguments[1];
+                ExprNode third = arguments[2];
+                return (frame, environment) -> {
+                    Object function = callee.evaluate(frame, environment);
+                    Object a = first.evaluate(frame, environment);
+                    Object b = second.evaluate(frame, environment);
+                    Object c = third.evaluate(frame, environment);
+                    return Interpreter.checkCall(paren, function, 3).call3(interpreter, a, b, c);
+                };
+            }
+            case 4: {
+                ExprNode first = arguments[0];
+                ExprNode second = arguments[1];
+                ExprNode third = arguments[2];
+                ExprNode fourth = arguments[3];
+                return (frame, environment) -> {
+                    Object function = callee.evaluate(frame, environment);
+                    Object a = first.evaluate(frame, environment);
+                    Object b = second.evaluate(frame, environment);
+                    Object c = third.evaluate(frame, environment);
+                    Object d = fourth.evaluate(frame, environment);
+                    return Interpreter.checkCall(paren, function, 4).call4(interpreter, a, b, c, d);
+                };
+            }
+            default:
+                return (frame, environment) -> {
+                    Object function = callee.evaluate(frame, environment);
+                    Object[] values = evaluate(arguments, frame, environment);
+                    return Interpreter.checkCall(paren, function, values.length).call(interpreter, values);
+                };
+        }
+    }
+
+    private static Object[] evaluate(ExprNode[] arguments, Object[] frame, Environment environment) {
+        Object[] values = new Object[arguments.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = arguments[i].evaluate(frame, environment);
+        }
+        return values;
+    }
+
+    // A method called straight off an instance is invoked with the instance as its receiver, without binding it.
+    private ExprNode methodCall(Expr.Get get, ExprNode[] arguments, Token paren) {
+        ExprNode object = compile(get.object);
+        Token name = get.name;
+        PropertyCache cache = get.cache;
+
+        switch (arguments.length) {
+            case 0:
+                return (frame, environment) -> {
+                    TokInstance receiver = receiver(object.evaluate(frame, environment), name);
+                    TokFunction method = receiver.findMethod(name, cache);
+                    Object function = method != null ? method : receiver.get(name, cache);
+                    TokCallable callable = Interpreter.checkCall(paren, function, 0);
+                    if (method != null) return method.invoke0(interpreter, receiver);
+                    return callable.call0(interpreter);
+                };
+            case 1: {
+                ExprNode first = arguments[0];
+                return (frame, environment) -> {
+                    TokInstance receiver = receiver(object.evaluate(frame, environment), name);
+                    TokFunction method = receiver.findMethod(name, cache);
+                    Object function = method != null ? method : receiver.get(name, cache);
+                    Object a = first.evaluate(frame, environment);
+                    TokCallable callable = Interpreter.checkCall(paren, function, 1);
+                    if (method != null) return method.invoke1(interpreter, receiver, a);
+                    return callable.call1(interpreter, a);
+                };
+            }
+            case 2: {
+                ExprNode first = arguments[0];
+                ExprNode second = arguments[1];
+                return (frame, environment) -> {
+                    TokInstance receiver = receiver(object.evaluate(frame, environment), name);
+                    TokFunction method = receiver.findMethod(name, cache);
+                    Object function = method != null ? method : receiver.get(name, cache);
+                    Object a = first.evaluate(frame, environment);
+                    Object b = second.evaluate(frame, environment);
+                    TokCallable callable = Interpreter.checkCall(paren, function, 2);
+                    if (method != null) return method.invoke2(interpreter, receiver, a, b);
+                    return callable.call2(interpreter, a, b);
+                };
+            }
+            case 3: {
+                ExprNode first = arguments[0];
+                ExprNode second = arguments[1];
+                ExprNode third = arguments[2];
+                return (frame, environment) -> {
+                    TokInstance receiver = receiver(object.evaluate(frame, environment), name);
+                    TokFunction method = receiver.findMethod(name, cache);
+                    Object function = method != null ? method : receiver.get(name, cache);
+                    Object a = first.evaluate(frame, environment);
+                    Object b = second.evaluate(frame, environment);
+                    Object c = third.evaluate(frame, environment);
+                    TokCallable callable = Interpreter.checkCall(paren, function, 3);
+                    if (method != null) return method.invoke3(interpreter, receiver, a, b, c);
+                    return callable.call3(interpreter, a, b, c);
+                };
+            }
+            case 4: {
+                ExprNode first = arguments[0];
+                ExprNode second = arguments[1];
+                ExprNode third = arguments[2];
+                ExprNode fourth = arguments[3];
+                return (frame, environment) -> {
+                    TokInstance receiver = receiver(object.evaluate(frame, environment), name);
+                    TokFunction method = receiver.findMethod(name, cache);
+                    Object function = method != null ? method : receiver.get(name, cache);
+                    Object a = first.evaluate(frame, environment);
+                    Object b = second.evaluate(frame, environment);
+                    Object c = third.evaluate(frame, environment);
+                    Object d = fourth.evaluate(frame, environment);
+                    TokCallable callable = Interpreter.checkCall(paren, function, 4);
+                    if (method != null) return method.invoke4(interpreter, receiver, a, b, c, d);
+                    return callable.call4(interpreter, a, b, c, d);
+                };
+            }
+            default:
+                return (frame, environment) -> {
+                    TokInstance receiver = receiver(object.evaluate(frame, environment), name);
+                    TokFunction method = receiver.findMethod(name, cache);
+                    Object function = method != null ? method : receiver.get(name, cache);
+                    Object[] values = evaluate(arguments, frame, environment);
+                    TokCallable callable = Interpreter.checkCall(paren, function, values.length);
+                    if (method != null) return method.invoke(interpreter, receiver, values);
+                    return callable.call(interpreter, values);
+                };
+        }
+    }
+
+    private static TokInstance receiver(Object object, Token name) {
+        if (object instanceof TokInstance) return (TokInstance) object;
+        throw new RuntimeError(name, "Only instances have properties.");
+    }
+
+    @Override
+    public ExprNode visitGetExpr(Expr.Get expr) {
+        ExprNode object = compile(expr.object);
+        Token name = expr.name;
+        PropertyCache cache = expr.cache;
+
+        return (frame, environment) -> {
+            Object instance = object.evaluate(frame, environment);
+            if (instance instanceof TokInstance) {
+                return ((TokInstance) instance).get(name, cache);
+            }
+
+            throw new RuntimeError(name, "Only instances have properties.");
+        };
+    }
+
+    @Override
+    public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+        // A grouping only matters to the parser.
+        return compile(expr.expression);
+    }
+
+    @Override
+    public ExprNode visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value instanceof Double && Interpreter.isLong((double) value)) return new LongLiteral((Double) value);
+        if (value instanceof Double) return new NumberLiteral((Double) value);
+        return (frame, environment) -> value;
+    }
+
+    @Override
+    public ExprNode visitLogicalExpr(Expr.Logical expr) {
+        ExprNode left = compile(expr.left);
+        ExprNode right = compile(expr.right);
+
+        if (expr.operator.type == TokenType.OR) {
+            return (frame, environment) -> {
+                Object value = left.evaluate(frame, environment);
+                if (Interpreter.isTruthy(value)) return value;
+                return right.evaluate(frame, environment);
+            };
+        }
+
+        return (frame, environment) -> {
+            Object value = left.evaluate(frame, environment);
+            if (!Interpreter.isTruthy(value)) return value;
+            return right.evaluate(frame, environment);
+        };
+    }
+
+    @Override
+    public ExprNode visitSetExpr(Expr.Set expr) {
+        ExprNode object = compile(expr.object);
+        ExprNode value = compile(expr.value);
+        Token name = expr.name;
+
+        return (frame, environment) -> {
+            Object instance = object.evaluate(frame, environment);
+            if (!(instance instanceof TokInstance)) {
+                throw new RuntimeError(name, "Only instances have fields.");
+            }
+
+            Object result = value.evaluate(frame, environment);
+            ((TokInstance) instance).set(name, result);
+            return result;
+        };
+    }
+
+    @Override
+    public ExprNode visitSuperExpr(Expr.Super expr) {
+        ExprNode superclassNode = variable(expr.keyword, expr.depth, expr.slot);
+        ExprNode objectNode = variable(expr.keyword, expr.thisDepth, expr.thisSlot);
+        Token method = expr.method;
+
+        return (frame, environment) -> {
+            TokClass superclass = (TokClass) superclassNode.evaluate(frame, environment);
+            TokInstance object = (TokInstance) objectNode.evaluate(frame, environment);
+
+            TokFunction function = superclass.findMethod(method.lexeme());
+            if (function == null) {
+                throw new RuntimeError(method, "Undefined property '" + method.lexeme() + "'.");
+            }
+
+            return function.bind(object);
+        };
+    }
+
+    @Override
+    public ExprNode visitThisExpr(Expr.This expr) {
+        return variable(expr.keyword, expr.depth, expr.slot);
+    }
+
+    @Override
+    public ExprNode visitUnaryExpr(Expr.Unary expr) {
+        ExprNode right = compile(expr.right);
+        Token operator = expr.operator;
+
+        if (operator.type == TokenType.BANG) {
+            return (frame, environment) -> !Interpreter.isTruthy(right.evaluate(frame, environment));
+        }
+
+        if (right instanceof NumberNode) {
+            NumberNode number = (NumberNode) right;
+            return (NumberNode) (frame, environment) -> -number.evaluateNumber(frame, environment);
+        }
+
+        return (NumberNode) (frame, environment) -> {
+            Object value = right.evaluate(frame, environment);
+            Interpreter.checkNumberOperand(operator, value);
+            return -(double) value;
+        };
+    }
+
+    @Override
+    public ExprNode visitVariableExpr(Expr.Variable expr) {
+        if (expr.depth == Resolver.FRAME && counters.contains(expr.slot)) return new CounterRead(expr.slot);
+        return variable(expr.name, expr.depth, expr.slot);
+    }
+
+    private ExprNode variable(Token name, int depth, int slot) {
+        if (depth == Resolver.FRAME) {
+            return (frame, environment) -> frame[slot];
+        }
+
+        if (depth == Resolver.GLOBAL) {
+            Environment globals = interpreter.globals;
+            return (frame, environment) -> globals.get(name);
+        }
+
+        if (depth == 0) return (frame, environment) -> environment.getAt(0, slot);
+        return (frame, environment) -> environment.getAt(depth, slot);
+    }
+
+    private interface Definition {
+        void define(Object[] frame, Environment environment, Object value);
+    }
+
+    // Where a declaration puts the value it defines, see Resolver.
+    private Definition definition(Token name, int depth, int slot) {
+        if (depth == Resolver.FRAME) {
+            return (frame, environment, value) -> frame[slot] = value;
+        }
+
+        if (depth == Resolver.GLOBAL) {
+            Environment globals = interpreter.globals;
+            return (frame, environment, value) -> globals.define(name.lexeme(), value);
+        }
+
+        // Captured locals are defined in the order the Resolver numbered them.
+        return (frame, environment, value) -> environment.define(value);
+    }
+}
@@ -0,0 +1,11 @@
+package tok;
+
+enum Completion {
+    /*
+     * How a statement finished. A return statement completes with RETURN after leaving its value with the
+     * Interpreter, and every enclosing statement passes RETURN on at once, up to the function call that takes the value.
+     */
+
+    NORMAL,
+    RETURN
+}
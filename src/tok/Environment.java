@@ -4,45 +4,59 @@ import java.util.HashMap;
 import java.util.Map;
 
 public class Environment {
+    /**
+     * The global environment stores variables by name, since globals are late bound and never resolved.
+     * Every other environment holds the locals of one scope that closures capture - the rest live in the frame of their
+     * function's call, see Resolver. The Resolver numbers captured locals in the order they are declared in their
+     * scope, and the interpreter defines them in that same order, so a local is read and written by its slot index.
+     */
+
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
+    private final Map<String, Object> values;
+    private final Object[] slots;
+    private int count = 0;
 
     Environment() {
         enclosing = null;
+        values = new HashMap<>();
+        slots = null;
     }
 
-    Environment(Environment enclosing) {
+    // An environment for a scope with this many captured locals, see Resolver.
+    Environment(Environment enclosing, int size) {
         this.enclosing = enclosing;
+        values = null;
+        slots = new Object[size];
     }
 
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
+        if (values.containsKey(name.lexeme())) {
+            return values.get(name.lexeme());
         }
 
-        if (enclosing != null) return enclosing.get(name);
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme() + "'.");
     }
 
     void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
+        if (values.containsKey(name.lexeme())) {
+            values.put(name.lexeme(), value);
             return;
         }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
-        }
-
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+        throw new RuntimeError(name, "Undefined variable '" + name.lexeme() + "'.");
     }
 
+    // Defines a global.
     void define(String name, Object value) {
         values.put(name, value);
     }
 
+    // Defines the next local. Locals are defined in declaration order, so the next free slot is the one the Resolver
+    // assigned, and they need no name.
+    void define(Object value) {
+        slots[count++] = value;
+    }
+
     Environment ancestor(int distance) {
         Environment environment = this;
         for (int i = 0; i < distance; i++) {
@@ -51,11 +65,11 @@ public class Environment {
         return environment;
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.get(name);
+    Object getAt(int distance, int slot) {
+        return ancestor(distance).slots[slot];
     }
 
-    void assignAt(int distance, Token name, Object value) {
-        ancestor(distance).values.put(name.lexeme, value);
+    void assignAt(int distance, int slot, Object value) {
+        ancestor(distance).slots[slot] = value;
     }
 }
@@ -3,15 +3,33 @@ package tok;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.ArrayList;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Completion> {
 
     final Environment globals = new Environment();
+    // The locals of the current call, and the environment holding the ones closures capture, see Resolver.
+    private Object[] frame;
     private Environment environment = globals;
-    private final Map<Expr, Integer> locals = new HashMap<>();
 
-    Interpreter() {
+    // The value of the return statement being completed, until the function call it returns from takes it.
+    private Object returnValue = null;
+
+    // The value a return statement completes with when it leaves a tail call to the function it returns from, which
+    // then makes the call in a loop rather than nested inside this one, see TokFunction.run(). The call to make is the
+    // function and the frame, holding the arguments, set by tailCall().
+    static final Object TAIL_CALL = new Object();
+    private TokFunction tailFunction = null;
+    private Object[] tailFrame = null;
+    // Set by a return statement whose value is a call, for visitCallExpr() to take: passing it on the Java stack
+    // instead would cost every call a frame.
+    private boolean tailPosition = false;
+
+    // Whether binary operators specialize themselves to the operand types they see, see BinarySpecialization.
+    private final boolean specialize;
+
+    Interpreter(boolean specialize) {
+        this.specialize = specialize;
+
         globals.define("clock", new TokCallable() {
             @Override
             public int arity() {
@@ -19,11 +37,15 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
 
             @Override
-            public Object call(Interpreter interpreter,
-                               List<Object> arguments) {
+            public Object call0(Interpreter interpreter) {
                 return (double) System.currentTimeMillis() / 1000.0;
             }
 
+            @Override
+            public Object call(Interpreter interpreter, Object[] arguments) {
+                return call0(interpreter);
+            }
+
             @Override
             public String toString() {
                 return "<native fn>";
@@ -31,7 +53,10 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         });
     }
 
-    void interpret(List<Stmt> statements) {
+    // Runs a program whose top-level blocks need this many frame slots, see Resolver.frameSize().
+    void interpret(List<Stmt> statements, int frameSize) {
+        frame = new Object[frameSize];
+        environment = globals;
         try {
             for (Stmt statement : statements) {
                 execute(statement);
@@ -41,6 +66,49 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
     }
 
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
+    }
+
+    void setReturnValue(Object value) {
+        returnValue = value;
+    }
+
+    // Evaluates the arguments of a tail call into the callee's frame, and leaves the call to the function returning.
+    private Object tailCall(TokFunction function, Object[] frame, List<Expr> arguments) {
+        for (int i = 0; i < arguments.size(); i++) {
+            frame[function.parameterSlot + i] = evaluate(arguments.get(i));
+        }
+        return tailCall(function, frame);
+    }
+
+    Object tailCall(TokFunction function, Object[] frame) {
+        tailFunction = function;
+        tailFrame = frame;
+        return TAIL_CALL;
+    }
+
+    TokFunction tailFunction() {
+        return tailFunction;
+    }
+
+    Object[] takeTailFrame() {
+        Object[] frame = tailFrame;
+        tailFrame = null;
+        return frame;
+    }
+
+    // Runs a program produced by the ClosureCompiler, which executes against this interpreter's globals.
+    void interpret(ClosureCompiler.StmtNode program, int frameSize) {
+        try {
+            program.execute(new Object[frameSize], globals);
+        } catch (RuntimeError error) {
+            tok.runtimeError(error);
+        }
+    }
+
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
         return expr.value;
@@ -74,15 +142,13 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        int distance = locals.get(expr);
-        TokClass superclass = (TokClass) environment.getAt(distance, "super");
-
-        TokInstance object = (TokInstance) environment.getAt(distance - 1, "this");
+        TokClass superclass = (TokClass) lookUpVariable(expr.keyword, expr.depth, expr.slot);
+        TokInstance object = (TokInstance) lookUpVariable(expr.keyword, expr.thisDepth, expr.thisSlot);
 
-        TokFunction method = superclass.findMethod(expr.method.lexeme);
+        TokFunction method = superclass.findMethod(expr.method.lexeme());
 
         if (method == null) {
-            throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
+            throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme() + "'.");
         }
 
         return method.bind(object);
@@ -90,7 +156,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth, expr.slot);
     }
 
     @Override
@@ -116,43 +182,55 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
+        return lookUpVariable(expr.name, expr.depth, expr.slot);
     }
 
-    private Object lookUpVariable(Token name, Expr expr) {
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            return environment.getAt(distance, name.lexeme);
+    private Object lookUpVariable(Token name, int depth, int slot) {
+        if (depth == Resolver.FRAME) {
+            return frame[slot];
+        } else if (depth != Resolver.GLOBAL) {
+            return environment.getAt(depth, slot);
         } else {
             return globals.get(name);
         }
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    private void define(Token name, int depth, int slot, Object value) {
+        if (depth == Resolver.FRAME) {
+            frame[slot] = value;
+        } else if (depth != Resolver.GLOBAL) {
+            // Captured locals are defined in the order the Resolver numbered them.
+            environment.define(value);
+        } else {
+            globals.define(name.lexeme(), value);
+        }
+    }
+
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private void checkNumberOperand(Token operator, Object left, Object right) {
+    static void checkNumberOperand(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
 
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    public static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean) object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    public static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
 
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -170,35 +248,52 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    void resolve(Expr expr, int depth) {
-        locals.put(expr, depth);
+    Completion executeBlock(List<Stmt> statements, Environment environment) {
+        Environment previous = this.environment;
+        try {
+            this.environment = environment;
+
+            for (Stmt statement : statements) {
+                if (execute(statement) == Completion.RETURN) return Completion.RETURN;
+            }
+            return Completion.NORMAL;
+        } finally {
+            this.environment = previous;
+        }
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
+    // Runs a function body in the frame and environment of its call. It runs the statements itself rather than
+    // through executeBlock(), to keep one Java frame less between two Tok calls.
+    Completion executeBody(List<Stmt> statements, Object[] frame, Environment environment) {
+        Object[] previousFrame = this.frame;
         Environment previous = this.environment;
         try {
+            this.frame = frame;
             this.environment = environment;
 
             for (Stmt statement : statements) {
-                execute(statement);
+                if (statement.accept(this) == Completion.RETURN) return Completion.RETURN;
             }
+            return Completion.NORMAL;
         } finally {
+            this.frame = previousFrame;
             this.environment = previous;
         }
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        // A block whose locals all live in the frame runs in the environment it is in.
+        if (stmt.environmentSize == 0) return executeBlock(stmt.statements, environment);
+        return executeBlock(stmt.statements, new Environment(environment, stmt.environmentSize));
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -207,93 +302,198 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
             }
         }
 
-        environment.define(stmt.name.lexeme, null);
-
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            environment = new Environment(environment, 1);
+            environment.define(superclass);
         }
 
         Map<String, TokFunction> methods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            TokFunction function = new TokFunction(method, environment, method.name.lexeme.equals("init"));
-            methods.put(method.name.lexeme, function);
+            TokFunction function = new TokFunction(method, environment, null, method.name.lexeme().equals("init"));
+            methods.put(method.name.lexeme(), function);
         }
 
-        TokClass klass = new TokClass(stmt.name.lexeme, (TokClass) superclass, methods);
+        TokClass klass = new TokClass(stmt.name.lexeme(), (TokClass) superclass, methods);
 
         if (superclass != null) {
             environment = environment.enclosing;
         }
 
-        environment.assign(stmt.name, klass);
-        return null;
+        // Nothing between resolving the superclass and here can fail, so defining the class only once it is complete
+        // is indistinguishable from declaring the name up front - and it keeps the class in the slot the Resolver
+        // assigned it.
+        define(stmt.name, stmt.depth, stmt.slot, klass);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
         evaluate(stmt.expression);
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        TokFunction function = new TokFunction(stmt, environment, false);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        TokFunction function = new TokFunction(stmt, environment, null);
+        define(stmt.name, stmt.depth, stmt.slot, function);
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
         Object value = null;
-        if (stmt.value != null) value = evaluate(stmt.value);
+        if (stmt.value != null) {
+            tailPosition = stmt.value instanceof Expr.Call;
+            value = stmt.value.accept(this);
+        }
 
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        define(stmt.name, stmt.depth, stmt.slot, value);
+        return Completion.NORMAL;
+    }
+
+    @Override
+    public Completion visitForStmt(Stmt.For stmt) {
+        if (stmt.environmentSize == 0) return executeFor(stmt);
+
+        Environment previous = this.environment;
+        try {
+            this.environment = new Environment(environment, stmt.environmentSize);
+            return executeFor(stmt);
+        } finally {
+            this.environment = previous;
+        }
+    }
+
+    private Completion executeFor(Stmt.For stmt) {
+        if (stmt.initializer != null) execute(stmt.initializer);
+
+        if (stmt.counted) {
+            int slot = ((Stmt.Var) stmt.initializer).slot;
+            if (frame[slot] instanceof Double) return executeCountedLoop(stmt, slot);
+        }
+
+        while (stmt.condition == null || isTruthy(evaluate(stmt.condition))) {
+            if (execute(stmt.body) == Completion.RETURN) return Completion.RETURN;
+            if (stmt.increment != null) evaluate(stmt.increment);
+        }
+        return Completion.NORMAL;
+    }
+
+    // A counted loop (see Resolver) whose counter starts out as a number keeps the counter in a primitive, and only
+    // stores it in its frame slot for the body to read. An integral counter, step and bound run on a long.
+    private Completion executeCountedLoop(Stmt.For stmt, int slot) {
+        Expr.Binary condition = (Expr.Binary) stmt.condition;
+        TokenType comparison = condition.operator.type;
+        double bound = (double) ((Expr.Literal) condition.right).value;
+        Expr.Binary increment = (Expr.Binary) ((Expr.Assign) stmt.increment).value;
+        double step = (double) ((Expr.Literal) increment.right).value;
+        if (increment.operator.type == TokenType.MINUS) step = -step;
+
+        double start = (double) frame[slot];
+        if (isLong(start) && isLong(bound) && isLong(step)) {
+            long counter = (long) start;
+            long longBound = (long) bound;
+            long longStep = (long) step;
+            while (compare(comparison, counter, longBound)) {
+                if (execute(stmt.body) == Completion.RETURN) return Completion.RETURN;
+                counter += longStep;
+                frame[slot] = (double) counter;
+                if (counter <= -MAX_LONG || counter >= MAX_LONG) break;
+            }
+            // The loop either ended, which the double loop sees as well, or the counter passed 2^53, where a long no
+            // longer rounds the way a double does, and carries on as a double.
+            start = counter;
+        }
+
+        double counter = start;
+        while (compare(comparison, counter, bound)) {
+            if (execute(stmt.body) == Completion.RETURN) return Completion.RETURN;
+            counter += step;
+            frame[slot] = counter;
+        }
+        return Completion.NORMAL;
+    }
+
+    // The magnitude below which every long is exact in a double, so integral numbers can be held in either.
+    static final long MAX_LONG = 1L << 53;
+
+    // Whether a number is integral and can run on a long with the same results as on a double. -0 is left to the
+    // double, which keeps its sign.
+    static boolean isLong(double value) {
+        return value > -MAX_LONG && value < MAX_LONG && value == (long) value
+                && (value != 0.0 || Double.doubleToRawLongBits(value) == 0L);
+    }
+
+    static boolean compare(TokenType operator, double left, double right) {
+        switch (operator) {
+            case LESS:
+                return left < right;
+            case LESS_EQUAL:
+                return left <= right;
+            case GREATER:
+                return left > right;
+            default:
+                return left >= right;
+        }
+    }
+
+    static boolean compare(TokenType operator, long left, long right) {
+        switch (operator) {
+            case LESS:
+                return left < right;
+            case LESS_EQUAL:
+                return left <= right;
+            case GREATER:
+                return left > right;
+            default:
+                return left >= right;
+        }
     }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Completion visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+            if (execute(stmt.body) == Completion.RETURN) return Completion.RETURN;
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
 
-        Integer distance = locals.get(expr);
-        if (distance != null) {
-            environment.assignAt(distance, expr.name, value);
+        if (expr.depth == Resolver.FRAME) {
+            frame[expr.slot] = value;
+        } else if (expr.depth != Resolver.GLOBAL) {
+            environment.assignAt(expr.depth, expr.slot, value);
         } else {
             globals.assign(expr.name, value);
         }
@@ -303,28 +503,51 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
-        Object left = evaluate(expr.left);
-        Object right = evaluate(expr.right);
+        Object left = expr.left.accept(this);
+        Object right = expr.right.accept(this);
+        // The operator itself is applied in another method, since this frame stays on the Java stack for as long as a
+        // call in the right operand runs.
+        if (specialize) return specialized(expr, left, right);
+        return binary(expr.operator, left, right);
+    }
+
+    private static Object specialized(Expr.Binary expr, Object left, Object right) {
+        BinarySpecialization specialization = expr.specialization;
+        // A node that has deoptimized has no guard left to check.
+        if (specialization == BinarySpecialization.GENERIC) return binary(expr.operator, left, right);
+
+        if (specialization == null) {
+            specialization = BinarySpecialization.select(expr.operator.type, left, right);
+            expr.specialization = specialization;
+        }
 
-        switch (expr.operator.type) {
+        if (specialization.accepts(left, right)) return specialization.execute(expr.operator, left, right);
+
+        // Deoptimize: the operands no longer fit, so fall back to the generic path from now on.
+        expr.specialization = BinarySpecialization.GENERIC;
+        return binary(expr.operator, left, right);
+    }
+
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case GREATER:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double) left > (double) right;
             case GREATER_EQUAL:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double) left >= (double) right;
             case LESS:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double) left < (double) right;
             case LESS_EQUAL:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double) left <= (double) right;
             case BANG_EQUAL:
                 return !isEqual(left, right);
             case EQUAL_EQUAL:
                 return isEqual(left, right);
             case MINUS:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double) left - (double) right;
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
@@ -335,15 +558,15 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                     return (String) left + (String) right;
                 }
 
-                throw new RuntimeError(expr.operator, "Operands must be two numbers or two strings.");
+                throw new RuntimeError(operator, "Operands must be two numbers or two strings.");
             case SLASH:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 if ((double) right == 0.0) {
-                    throw new RuntimeError(expr.operator, "Cannot divide by 0.");
+                    throw new RuntimeError(operator, "Cannot divide by 0.");
                 }
                 return (double) left / (double) right;
             case STAR:
-                checkNumberOperand(expr.operator, left, right);
+                checkNumberOperand(operator, left, right);
                 return (double) left * (double) right;
         }
 
@@ -353,30 +576,145 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
+        // A call in tail position - the value of a return statement - to a Tok function is not made here but left to
+        // the function being returned from, so a chain of tail calls runs in constant Java stack.
+        boolean tail = tailPosition;
+        tailPosition = false;
+
+        if (expr.callee instanceof Expr.Get) return invoke(expr, (Expr.Get) expr.callee, tail);
+
         Object callee = evaluate(expr.callee);
+        List<Expr> arguments = expr.arguments;
+        if (tail && callee instanceof TokFunction) {
+            TokFunction function = (TokFunction) callee;
+            if (function.arity() == arguments.size()) return tailCall(function, function.frame(), arguments);
+        }
+
+        switch (arguments.size()) {
+            case 0:
+                return checkCall(expr.paren, callee, 0).call0(this);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                return checkCall(expr.paren, callee, 1).call1(this, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                return checkCall(expr.paren, callee, 2).call2(this, a, b);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                return checkCall(expr.paren, callee, 3).call3(this, a, b, c);
+            }
+            case 4: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                Object d = evaluate(arguments.get(3));
+                return checkCall(expr.paren, callee, 4).call4(this, a, b, c, d);
+            }
+            default:
+                return callValues(expr, callee);
+        }
+    }
+
+    // A method called straight off an instance is invoked with the instance as its receiver, without binding it. It
+    // is kept out of visitCallExpr(), whose frame every plain call keeps on the Java stack while the callee runs.
+    private Object invoke(Expr.Call expr, Expr.Get get, boolean tail) {
+        Object object = evaluate(get.object);
+        if (!(object instanceof TokInstance)) {
+            throw new RuntimeError(get.name, "Only instances have properties.");
+        }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+        TokInstance receiver = (TokInstance) object;
+        TokFunction method = receiver.findMethod(get.name, get.cache);
+        List<Expr> arguments = expr.arguments;
+        if (method == null) {
+            // A function held in a field.
+            Object callee = receiver.get(get.name, get.cache);
+            if (tail && callee instanceof TokFunction) {
+                TokFunction function = (TokFunction) callee;
+                if (function.arity() == arguments.size()) return tailCall(function, function.frame(), arguments);
+            }
+            return callValues(expr, callee);
         }
 
+        if (tail && method.arity() == arguments.size()) {
+            return tailCall(method, method.frame(receiver), arguments);
+        }
+
+        switch (arguments.size()) {
+            case 0:
+                checkCall(expr.paren, method, 0);
+                return method.invoke0(this, receiver);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                checkCall(expr.paren, method, 1);
+                return method.invoke1(this, receiver, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                checkCall(expr.paren, method, 2);
+                return method.invoke2(this, receiver, a, b);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                checkCall(expr.paren, method, 3);
+                return method.invoke3(this, receiver, a, b, c);
+            }
+            case 4: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                Object d = evaluate(arguments.get(3));
+                checkCall(expr.paren, method, 4);
+                return method.invoke4(this, receiver, a, b, c, d);
+            }
+            default: {
+                Object[] values = evaluateArguments(arguments);
+                checkCall(expr.paren, method, values.length);
+                return method.invoke(this, receiver, values);
+            }
+        }
+    }
+
+    // A call through the entry point that takes any number of arguments.
+    private Object callValues(Expr.Call expr, Object callee) {
+        Object[] values = evaluateArguments(expr.arguments);
+        return checkCall(expr.paren, callee, values.length).call(this, values);
+    }
+
+    private Object[] evaluateArguments(List<Expr> arguments) {
+        Object[] values = new Object[arguments.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = evaluate(arguments.get(i));
+        }
+        return values;
+    }
+
+    // Checks, once its arguments are evaluated, that the callee can be called with that many of them.
+    static TokCallable checkCall(Token paren, Object callee, int argumentCount) {
         if (!(callee instanceof TokCallable)) {
-            throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+            throw new RuntimeError(paren, "Can only call functions and classes.");
         }
 
         TokCallable function = (TokCallable) callee;
-        if (arguments.size() != function.arity()) {
-            throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+        if (argumentCount != function.arity()) {
+            throw new RuntimeError(paren, "Expected " + function.arity() + " arguments but got " + argumentCount + ".");
         }
-
-        return function.call(this, arguments);
+        return function;
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
         Object object = evaluate(expr.object);
         if (object instanceof TokInstance) {
-            return ((TokInstance) object).get(expr.name);
+            return ((TokInstance) object).get(expr.name, expr.cache);
         }
 
         throw new RuntimeError(expr.name, "Only instances have properties.");
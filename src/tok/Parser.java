@@ -1,7 +1,6 @@
 package tok;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import static tok.TokenType.*;
@@ -56,12 +55,12 @@ public class Parser {
     private static class ParseError extends RuntimeException {
     }
 
-    private final List<Token> tokens;
+    private final TokenBuffer tokens;
 
     // current points at the next token ready to be consumed.
     private int current = 0;
 
-    Parser(List<Token> tokens) {
+    Parser(TokenBuffer tokens) {
         this.tokens = tokens;
     }
 
@@ -152,18 +151,7 @@ public class Parser {
 
         Stmt body = statement();
 
-        if (increment != null) {
-            body = new Stmt.Block(Arrays.asList(body, new Stmt.Expression(increment)));
-        }
-
-        if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
-
-        if (initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer, body));
-        }
-
-        return body;
+        return new Stmt.For(initializer, condition, increment, body);
     }
 
     private Stmt ifStatement() {
@@ -423,7 +411,7 @@ public class Parser {
         if (match(NIL)) return new Expr.Literal(null);
 
         if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
+            return new Expr.Literal(tokens.literal(current - 1));
         }
 
         if (match(SUPER)) {
@@ -462,33 +450,36 @@ public class Parser {
     }
 
     private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
+        if (check(type)) {
+            advance();
+            return previous();
+        }
 
         throw error(peek(), message);
     }
 
+    // The token types are read straight off the TokenBuffer: a Token is only made for the tokens the AST keeps.
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) current++;
-        return previous();
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.type(current) == EOF;
     }
 
     private Token peek() {
         // returns the current token that we are yet to consume.
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
         // returns the most recently consumed token. This method makes it easier to use match and return the just-matched token
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 
     private ParseError error(Token token, String message) {
@@ -502,9 +493,9 @@ public class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) return;
+            if (tokens.type(current - 1) == SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (tokens.type(current)) {
                 case CLASS:
                 case FUN:
                 case VAR:
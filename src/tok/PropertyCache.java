@@ -0,0 +1,62 @@
+package tok;
+
+final class PropertyCache {
+    /*
+     * An inline cache for one property access site (an Expr.Get). A Shape belongs to a single class and fixes which
+     * fields an instance has, so it decides on its own what a property name resolves to: a field index, or a method
+     * of the class. The cache remembers that answer for the last few shapes seen at the site, sparing the shape and
+     * method table lookups. A site that sees more shapes than that goes megamorphic and stops caching.
+     */
+
+    private static final int POLYMORPHIC_LIMIT = 4;
+
+    private final Shape[] shapes = new Shape[POLYMORPHIC_LIMIT];
+    // For each cached shape, the field index, or -1 when the name resolves to the method in methods.
+    private final int[] indices = new int[POLYMORPHIC_LIMIT];
+    private final TokFunction[] methods = new TokFunction[POLYMORPHIC_LIMIT];
+    private int count = 0;
+    private boolean megamorphic = false;
+
+    // The entry for this shape, or -1 on a miss.
+    int lookup(Shape shape) {
+        for (int i = 0; i < count; i++) {
+            if (shapes[i] == shape) return i;
+        }
+        return -1;
+    }
+
+    int index(int entry) {
+        return indices[entry];
+    }
+
+    TokFunction method(int entry) {
+        return methods[entry];
+    }
+
+    void addField(Shape shape, int index) {
+        add(shape, index, null);
+    }
+
+    void addMethod(Shape shape, TokFunction method) {
+        add(shape, -1, method);
+    }
+
+    private void add(Shape shape, int index, TokFunction method) {
+        if (megamorphic) return;
+
+        if (count == POLYMORPHIC_LIMIT) {
+            megamorphic = true;
+            count = 0;
+            for (int i = 0; i < POLYMORPHIC_LIMIT; i++) {
+                shapes[i] = null;
+                methods[i] = null;
+            }
+            return;
+        }
+
+        shapes[count] = shape;
+        indices[count] = index;
+        methods[count] = method;
+        count++;
+    }
+}
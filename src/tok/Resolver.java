@@ -1,17 +1,76 @@
 package tok;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+    /*
+     * The Resolver statically binds every variable reference and declaration to where the variable lives, and records
+     * that on the AST node itself as a depth and a slot. References that stay unresolved are globals.
+     *
+     * A local that no nested function refers to lives in a slot of its function's frame, a flat array allocated once
+     * per call. Only the locals that are captured by a closure live in environments, numbered in declaration order per
+     * scope, so a closure keeps nothing alive but the captured variables of the scopes around it. Whether a local is
+     * captured is only known once its whole scope has been resolved, so the references to it are bound when its scope
+     * ends. A scope with no captured locals creates no environment at all, and environment depths skip over it.
+     */
+
+    // The depth of a variable in the global environment, looked up by name.
+    static final int GLOBAL = -1;
+    // The depth of a variable in the frame of the current call.
+    static final int FRAME = -2;
+
+    private final Stack<Scope> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
+    // How many functions the scope being resolved is nested in, the top-level code being 0.
+    private int functionDepth = 0;
+    // The number of frame slots the function being resolved has handed out so far.
+    private int frameSize = 0;
+
+    private static class Scope {
+        final Scope enclosing;
+        // In declaration order, which is the order in which captured variables are defined in the environment.
+        final Map<String, Variable> variables = new LinkedHashMap<>();
+        final int functionDepth;
+        // The number of captured variables, known once the scope ends. Without any, the scope has no environment.
+        int environmentSize = 0;
+
+        Scope(Scope enclosing, int functionDepth) {
+            this.enclosing = enclosing;
+            this.functionDepth = functionDepth;
+        }
+    }
+
+    private static class Variable {
+        // The index of the variable in its function's frame.
+        final int frameSlot;
+        boolean defined = false;
+        boolean captured = false;
+        int assignments = 0;
+        // The declaration and the references to bind once the scope ends.
+        final List<Reference> references = new ArrayList<>();
+
+        Variable(int frameSlot) {
+            this.frameSlot = frameSlot;
+        }
+    }
+
+    private interface Binding {
+        void bind(int depth, int slot);
+    }
+
+    private static class Reference {
+        // The innermost scope at the reference.
+        final Scope scope;
+        final Binding binding;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
+        Reference(Scope scope, Binding binding) {
+            this.scope = scope;
+            this.binding = binding;
+        }
     }
 
     private enum FunctionType {
@@ -39,7 +98,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitBlockStmt(Stmt.Block stmt) {
         beginScope();
         resolve(stmt.statements);
-        endScope();
+        stmt.environmentSize = endScope();
         return null;
     }
 
@@ -49,8 +108,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         currentClass = ClassType.CLASS;
         declare(stmt.name);
         define(stmt.name);
+        bindDeclaration(stmt.name, (depth, slot) -> {
+            stmt.depth = depth;
+            stmt.slot = slot;
+        });
 
-        if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
+        if (stmt.superclass != null && stmt.name.lexeme().equals(stmt.superclass.name.lexeme())) {
             tok.error(stmt.superclass.name, "A class can't inherit from itself");
         }
 
@@ -61,22 +124,18 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
         if (stmt.superclass != null) {
             beginScope();
-            scopes.peek().put("super", true);
+            // Only methods refer to "super", so it always lives in the environment they close over.
+            defineSynthetic("super").captured = true;
         }
 
-        beginScope();
-        scopes.peek().put("this", true);
-
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
-            if (method.name.lexeme.equals("init")) {
+            if (method.name.lexeme().equals("init")) {
                 declaration = FunctionType.INITIALIZER;
             }
             resolveFunction(method, declaration);
         }
 
-        endScope();
-
         if (stmt.superclass != null) endScope();
 
         currentClass = enclosingClass;
@@ -96,6 +155,10 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         // We define the the name eagerly here, unlike in case of variables - so that we can allow a function to
         // recursively refer to itself inside its own body.
         define(stmt.name);
+        bindDeclaration(stmt.name, (depth, slot) -> {
+            stmt.depth = depth;
+            stmt.slot = slot;
+        });
 
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
@@ -137,9 +200,68 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolve(stmt.initializer);
         }
         define(stmt.name);
+        bindDeclaration(stmt.name, (depth, slot) -> {
+            stmt.depth = depth;
+            stmt.slot = slot;
+        });
         return null;
     }
 
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        // The loop variable is scoped to the loop.
+        beginScope();
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        if (stmt.condition != null) resolve(stmt.condition);
+        resolve(stmt.body);
+        if (stmt.increment != null) resolve(stmt.increment);
+
+        Variable counter = counter(stmt);
+        stmt.environmentSize = endScope();
+        stmt.counted = counter != null && !counter.captured;
+        return null;
+    }
+
+    // The loop variable of a counted loop - for (var i = ...; i < number; i = i + number) - that nothing but the
+    // increment assigns, or null.
+    private Variable counter(Stmt.For stmt) {
+        if (!(stmt.initializer instanceof Stmt.Var)) return null;
+        Stmt.Var declaration = (Stmt.Var) stmt.initializer;
+        if (declaration.initializer == null) return null;
+        String name = declaration.name.lexeme();
+
+        if (!(stmt.condition instanceof Expr.Binary)) return null;
+        Expr.Binary condition = (Expr.Binary) stmt.condition;
+        switch (condition.operator.type) {
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+                break;
+            default:
+                return null;
+        }
+        if (!isVariable(condition.left, name) || !isNumber(condition.right)) return null;
+
+        if (!(stmt.increment instanceof Expr.Assign)) return null;
+        Expr.Assign increment = (Expr.Assign) stmt.increment;
+        if (!increment.name.lexeme().equals(name) || !(increment.value instanceof Expr.Binary)) return null;
+        Expr.Binary step = (Expr.Binary) increment.value;
+        if (step.operator.type != TokenType.PLUS && step.operator.type != TokenType.MINUS) return null;
+        if (!isVariable(step.left, name) || !isNumber(step.right)) return null;
+
+        Variable counter = scopes.peek().variables.get(name);
+        return counter.assignments == 1 ? counter : null;
+    }
+
+    private static boolean isVariable(Expr expr, String name) {
+        return expr instanceof Expr.Variable && ((Expr.Variable) expr).name.lexeme().equals(name);
+    }
+
+    private static boolean isNumber(Expr expr) {
+        return expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double;
+    }
+
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
         resolve(stmt.condition);
@@ -150,7 +272,11 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
-        resolveLocal(expr, expr.name);
+        Variable variable = resolveLocal(expr.name.lexeme(), (depth, slot) -> {
+            expr.depth = depth;
+            expr.slot = slot;
+        });
+        if (variable != null) variable.assignments++;
         return null;
     }
 
@@ -210,7 +336,14 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         } else if (currentClass != ClassType.SUBCLASS) {
             tok.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
         }
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr.keyword.lexeme(), (depth, slot) -> {
+            expr.depth = depth;
+            expr.slot = slot;
+        });
+        resolveLocal("this", (depth, slot) -> {
+            expr.thisDepth = depth;
+            expr.thisSlot = slot;
+        });
         return null;
     }
 
@@ -220,7 +353,10 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             tok.error(expr.keyword, "Can't use 'this' outside of a class.");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr.keyword.lexeme(), (depth, slot) -> {
+            expr.depth = depth;
+            expr.slot = slot;
+        });
         return null;
     }
 
@@ -240,56 +376,144 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
     private void resolveFunction(Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
+        int enclosingFrameSize = frameSize;
         currentFunction = type;
+        functionDepth++;
+        frameSize = 0;
+
         beginScope();
+        // A method gets its receiver as the first local of its own call, ahead of the parameters, see TokFunction.
+        if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+            defineSynthetic("this");
+        }
         for (Token param : function.params) {
             declare(param);
             define(param);
         }
         resolve(function.body);
-        endScope();
+
+        // The receiver and parameters take the first frame slots. The call moves the captured ones into its
+        // environment.
+        Scope scope = scopes.peek();
+        int parameterCount = function.params.size() + (type == FunctionType.FUNCTION ? 0 : 1);
+        int capturedCount = 0;
+        for (Variable variable : scope.variables.values()) {
+            if (variable.frameSlot < parameterCount && variable.captured) capturedCount++;
+        }
+        function.capturedParameters = new int[capturedCount];
+        int captured = 0;
+        for (Variable variable : scope.variables.values()) {
+            if (variable.frameSlot < parameterCount && variable.captured) {
+                function.capturedParameters[captured++] = variable.frameSlot;
+            }
+        }
+
+        function.environmentSize = endScope();
+        function.frameSize = frameSize;
+
+        frameSize = enclosingFrameSize;
+        functionDepth--;
         currentFunction = enclosingFunction;
     }
 
+    // The number of frame slots the top-level code needs for the locals of its blocks, once it is resolved.
+    int frameSize() {
+        return frameSize;
+    }
+
     private void beginScope() {
-        scopes.push(new HashMap<String, Boolean>());
+        scopes.push(new Scope(scopes.isEmpty() ? null : scopes.peek(), functionDepth));
     }
 
-    private void endScope() {
-        scopes.pop();
+    // Returns the number of captured variables in the scope, the size of its environment.
+    private int endScope() {
+        Scope scope = scopes.pop();
+
+        for (Variable variable : scope.variables.values()) {
+            if (variable.captured) scope.environmentSize++;
+        }
+
+        // Now that every reference is known, bind them to the frame, or to the environment for captured variables.
+        // Every scope nested in this one has ended, so it is known which of them have an environment.
+        int slot = 0;
+        for (Variable variable : scope.variables.values()) {
+            int environmentSlot = variable.captured ? slot++ : -1;
+            for (Reference reference : variable.references) {
+                if (variable.captured) {
+                    reference.binding.bind(environmentDepth(reference.scope, scope), environmentSlot);
+                } else {
+                    reference.binding.bind(FRAME, variable.frameSlot);
+                }
+            }
+        }
+        return scope.environmentSize;
+    }
+
+    // How many environments out from the scope of a reference the environment of the declaring scope is.
+    private static int environmentDepth(Scope from, Scope declaring) {
+        int depth = 0;
+        for (Scope scope = from; scope != declaring; scope = scope.enclosing) {
+            if (scope.environmentSize > 0) depth++;
+        }
+        return depth;
     }
 
     private void declare(Token name) {
         if (scopes.isEmpty()) return;
 
-        Map<String, Boolean> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+        Map<String, Variable> variables = scopes.peek().variables;
+        if (variables.containsKey(name.lexeme())) {
             tok.error(name, "Already variable with this name in this scope");
         }
-        scope.put(name.lexeme, false);
+        variables.put(name.lexeme(), new Variable(frameSize++));
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(name.lexeme, true);
+        scopes.peek().variables.get(name.lexeme()).defined = true;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // Binds the node declaring a local to where the local is defined. Globals need no binding.
+    private void bindDeclaration(Token name, Binding binding) {
+        if (scopes.isEmpty()) return;
+        scopes.peek().variables.get(name.lexeme()).references.add(new Reference(scopes.peek(), binding));
+    }
+
+    private Variable defineSynthetic(String name) {
+        Variable variable = new Variable(frameSize++);
+        variable.defined = true;
+        scopes.peek().variables.put(name, variable);
+        return variable;
+    }
+
+    // Returns the local the name refers to, or null for a global, which is left unbound.
+    private Variable resolveLocal(String name, Binding binding) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i);
-                return;
+            Scope scope = scopes.get(i);
+            Variable variable = scope.variables.get(name);
+            if (variable != null) {
+                // A variable referred to from a function nested inside its own is captured by that function.
+                if (scope.functionDepth < functionDepth) variable.captured = true;
+                variable.references.add(new Reference(scopes.peek(), binding));
+                return variable;
             }
         }
+        return null;
     }
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
-        if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-            tok.error(expr.name, "Can't read local variable in its own initializer");
+        if (!scopes.isEmpty()) {
+            Variable variable = scopes.peek().variables.get(expr.name.lexeme());
+            if (variable != null && !variable.defined) {
+                tok.error(expr.name, "Can't read local variable in its own initializer");
+            }
         }
 
-        resolveLocal(expr, expr.name);
+        resolveLocal(expr.name.lexeme(), (depth, slot) -> {
+            expr.depth = depth;
+            expr.slot = slot;
+        });
         return null;
     }
 }
@@ -1,60 +1,57 @@
 package tok;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 import static tok.TokenType.*;
 
 class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
-
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and", AND);
-        keywords.put("class", CLASS);
-        keywords.put("else", ELSE);
-        keywords.put("false", FALSE);
-        keywords.put("for", FOR);
-        keywords.put("fun", FUN);
-        keywords.put("if", IF);
-        keywords.put("nil", NIL);
-        keywords.put("or", OR);
-        keywords.put("print", PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super", SUPER);
-        keywords.put("this", THIS);
-        keywords.put("true", TRUE);
-        keywords.put("var", VAR);
-        keywords.put("while", WHILE);
-    }
-
+    /*
+     * The Scanner is driven by the Parser: it scans a token when the Parser asks for one that is not in the
+     * TokenBuffer yet. The source is any CharSequence - a String, a CharBuffer - and tokens keep pointing into it
+     * rather than copying their text, see Token.
+     */
+
+    private final CharSequence source;
+    private final TokenBuffer tokens;
+    // Whether the source is the bytes of a UTF-8 file, where CONTINUATION stands for the rest of a character, see
+    // Utf8Source. In any other source it is an unexpected character like any other.
+    private final boolean utf8;
 
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    Scanner(String source) {
+    // The identifiers scanned so far, in an open-addressing table keyed on their characters, so that each distinct
+    // name is copied out of the source once and every token for it shares the String.
+    private String[] names = new String[64];
+    private int nameCount = 0;
+
+    Scanner(CharSequence source) {
         this.source = source;
+        this.tokens = new TokenBuffer(this, source);
+        this.utf8 = source instanceof Utf8Source;
     }
 
-    List<Token> scanTokens() {
-        while (!isAtEnd()) {
+    // The tokens of the source, scanned as the Parser reads them.
+    TokenBuffer tokens() {
+        return tokens;
+    }
+
+    // Adds the next token to the buffer, skipping the whitespace and comments before it.
+    void scanToken() {
+        int scanned = tokens.size();
+        while (tokens.size() == scanned) {
+            if (isAtEnd()) {
+                // we add a final EOF token once we've parsed through the entire source file, as often as it is asked for.
+                tokens.add(EOF, current, 0, null, line);
+                return;
+            }
+
             // we are currently at the beginning of the next lexeme
             start = current;
-            scanToken();
+            scanLexeme();
         }
-
-        // we add a final EOF token once we've parsed through the entire source file.
-        tokens.add(new Token(EOF, "", null, line));
-        return tokens;
     }
 
-    private void scanToken() {
+    private void scanLexeme() {
         char c = advance();
         switch (c) {
             case '(':
@@ -124,7 +121,8 @@ class Scanner {
                     number();
                 } else if (isAlpha(c)) {
                     identifier();
-                } else {
+                } else if (!utf8 || c != Utf8Source.CONTINUATION) {
+                    // A CONTINUATION is the rest of a character already reported.
                     tok.error(line, "Unexpected character.");
                 }
                 break;
@@ -134,10 +132,103 @@ class Scanner {
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        // A keyword is told apart on the characters in the source, so it is never copied out of it.
+        TokenType type = keyword();
+        if (type != IDENTIFIER) {
+            addToken(type);
+        } else {
+            tokens.add(IDENTIFIER, start, current - start, intern(start, current), line);
+        }
+    }
+
+    // The keyword from start to current, or IDENTIFIER. The first character and the length leave at most one keyword
+    // to compare the rest of the characters against.
+    private TokenType keyword() {
+        int length = current - start;
+        switch (source.charAt(start)) {
+            case 'a':
+                return keyword(length, "and", AND);
+            case 'c':
+                return keyword(length, "class", CLASS);
+            case 'e':
+                return keyword(length, "else", ELSE);
+            case 'f':
+                if (length == 5) return keyword(length, "false", FALSE);
+                if (length == 3 && source.charAt(start + 1) == 'o') return keyword(length, "for", FOR);
+                return keyword(length, "fun", FUN);
+            case 'i':
+                return keyword(length, "if", IF);
+            case 'n':
+                return keyword(length, "nil", NIL);
+            case 'o':
+                return keyword(length, "or", OR);
+            case 'p':
+                return keyword(length, "print", PRINT);
+            case 'r':
+                return keyword(length, "return", RETURN);
+            case 's':
+                return keyword(length, "super", SUPER);
+            case 't':
+                if (length == 4 && source.charAt(start + 1) == 'h') return keyword(length, "this", THIS);
+                return keyword(length, "true", TRUE);
+            case 'v':
+                return keyword(length, "var", VAR);
+            case 'w':
+                return keyword(length, "while", WHILE);
+            default:
+                return IDENTIFIER;
+        }
+    }
+
+    private TokenType keyword(int length, String keyword, TokenType type) {
+        if (length != keyword.length()) return IDENTIFIER;
+        for (int i = 1; i < length; i++) {
+            if (source.charAt(start + i) != keyword.charAt(i)) return IDENTIFIER;
+        }
+        return type;
+    }
+
+    private String intern(int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+
+        // The hash is String.hashCode(), so growing the table can rehash the names without going back to the source.
+        int mask = names.length - 1;
+        int index = spread(hash) & mask;
+        for (String name = names[index]; name != null; name = names[index]) {
+            if (name.length() == to - from && matches(name, from)) return name;
+            index = (index + 1) & mask;
+        }
+
+        String name = source.subSequence(from, to).toString();
+        names[index] = name;
+        if (++nameCount * 2 > names.length) growNames();
+        return name;
+    }
+
+    private boolean matches(String name, int from) {
+        for (int i = 0; i < name.length(); i++) {
+            if (source.charAt(from + i) != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private void growNames() {
+        String[] old = names;
+        names = new String[old.length * 2];
+        int mask = names.length - 1;
+        for (String name : old) {
+            if (name == null) continue;
+            int index = spread(name.hashCode()) & mask;
+            while (names[index] != null) index = (index + 1) & mask;
+            names[index] = name;
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
     }
 
     private void number() {
@@ -151,7 +242,7 @@ class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER, Double.parseDouble(source.subSequence(start, current).toString()));
     }
 
     private void string() {
@@ -169,7 +260,7 @@ class Scanner {
         advance();
 
         // Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
+        String value = source.subSequence(start + 1, current - 1).toString();
         addToken(STRING, value);
     }
 
@@ -218,8 +309,7 @@ class Scanner {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(type, start, current - start, literal, line);
     }
 
 }
@@ -0,0 +1,50 @@
+package tok;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+final class Shape {
+    /*
+     * A Shape describes the layout of a TokInstance's fields: which field name lives at which index of the instance's
+     * field array. Shapes are shared - every instance of a class starts at the class's empty shape, and adding a field
+     * follows (or creates) the transition for that name, so instances that get the same fields in the same order end
+     * up sharing a single Shape and only pay for their own Object[] of values.
+     */
+
+    private final Map<String, Integer> indices;
+    private Map<String, Shape> transitions = null;
+
+    // The number of fields an instance of this shape has.
+    final int size;
+
+    Shape() {
+        this(Collections.<String, Integer>emptyMap());
+    }
+
+    private Shape(Map<String, Integer> indices) {
+        this.indices = indices;
+        this.size = indices.size();
+    }
+
+    int indexOf(String name) {
+        Integer index = indices.get(name);
+        return index != null ? index : -1;
+    }
+
+    // The shape an instance of this shape moves to when it gets a new field, which takes the next index.
+    Shape withField(String name) {
+        if (transitions == null) {
+            transitions = new HashMap<>();
+        }
+
+        Shape next = transitions.get(name);
+        if (next == null) {
+            Map<String, Integer> nextIndices = new HashMap<>(indices);
+            nextIndices.put(name, size);
+            next = new Shape(nextIndices);
+            transitions.put(name, next);
+        }
+        return next;
+    }
+}
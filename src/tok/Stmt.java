@@ -8,11 +8,12 @@ package tok;
 
 import java.util.List;
 
-abstract class Stmt {
-  interface Visitor<R> {
+public abstract class Stmt {
+  public interface Visitor<R> {
     R visitBlockStmt(Block stmt);
     R visitClassStmt(Class stmt);
     R visitExpressionStmt(Expression stmt);
+    R visitForStmt(For stmt);
     R visitFunctionStmt(Function stmt);
     R visitIfStmt(If stmt);
     R visitPrintStmt(Print stmt);
@@ -20,132 +21,167 @@ abstract class Stmt {
     R visitVarStmt(Var stmt);
     R visitWhileStmt(While stmt);
   }
-  static class Block extends Stmt {
-    Block(List<Stmt> statements) {
+  public static class Block extends Stmt {
+    public Block(List<Stmt> statements) {
       this.statements = statements;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitBlockStmt(this);
     }
 
-    final List<Stmt> statements;
+    public final List<Stmt> statements;
+
+    int environmentSize;
   }
-  static class Class extends Stmt {
-    Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
+  public static class Class extends Stmt {
+    public Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods) {
       this.name = name;
       this.superclass = superclass;
       this.methods = methods;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitClassStmt(this);
     }
 
-    final Token name;
-    final Expr.Variable superclass;
-    final List<Stmt.Function> methods;
+    public final Token name;
+    public final Expr.Variable superclass;
+    public final List<Stmt.Function> methods;
+
+    int depth = -1;
+    int slot;
   }
-  static class Expression extends Stmt {
-    Expression(Expr expression) {
+  public static class Expression extends Stmt {
+    public Expression(Expr expression) {
       this.expression = expression;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitExpressionStmt(this);
     }
 
-    final Expr expression;
+    public final Expr expression;
+  }
+  public static class For extends Stmt {
+    public For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+      this.initializer = initializer;
+      this.condition = condition;
+      this.increment = increment;
+      this.body = body;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitForStmt(this);
+    }
+
+    public final Stmt initializer;
+    public final Expr condition;
+    public final Expr increment;
+    public final Stmt body;
+
+    int environmentSize;
+    boolean counted;
   }
-  static class Function extends Stmt {
-    Function(Token name, List<Token> params, List<Stmt> body) {
+  public static class Function extends Stmt {
+    public Function(Token name, List<Token> params, List<Stmt> body) {
       this.name = name;
       this.params = params;
       this.body = body;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitFunctionStmt(this);
     }
 
-    final Token name;
-    final List<Token> params;
-    final List<Stmt> body;
+    public final Token name;
+    public final List<Token> params;
+    public final List<Stmt> body;
+
+    int depth = -1;
+    int slot;
+    int frameSize;
+    int environmentSize;
+    int[] capturedParameters;
   }
-  static class If extends Stmt {
-    If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
+  public static class If extends Stmt {
+    public If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
       this.condition = condition;
       this.thenBranch = thenBranch;
       this.elseBranch = elseBranch;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitIfStmt(this);
     }
 
-    final Expr condition;
-    final Stmt thenBranch;
-    final Stmt elseBranch;
+    public final Expr condition;
+    public final Stmt thenBranch;
+    public final Stmt elseBranch;
   }
-  static class Print extends Stmt {
-    Print(Expr expression) {
+  public static class Print extends Stmt {
+    public Print(Expr expression) {
       this.expression = expression;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitPrintStmt(this);
     }
 
-    final Expr expression;
+    public final Expr expression;
   }
-  static class Return extends Stmt {
-    Return(Token keyword, Expr value) {
+  public static class Return extends Stmt {
+    public Return(Token keyword, Expr value) {
       this.keyword = keyword;
       this.value = value;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitReturnStmt(this);
     }
 
-    final Token keyword;
-    final Expr value;
+    public final Token keyword;
+    public final Expr value;
   }
-  static class Var extends Stmt {
-    Var(Token name, Expr initializer) {
+  public static class Var extends Stmt {
+    public Var(Token name, Expr initializer) {
       this.name = name;
       this.initializer = initializer;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitVarStmt(this);
     }
 
-    final Token name;
-    final Expr initializer;
+    public final Token name;
+    public final Expr initializer;
+
+    int depth = -1;
+    int slot;
   }
-  static class While extends Stmt {
-    While(Expr condition, Stmt body) {
+  public static class While extends Stmt {
+    public While(Expr condition, Stmt body) {
       this.condition = condition;
       this.body = body;
     }
 
     @Override
-    <R> R accept(Visitor<R> visitor) {
+    public <R> R accept(Visitor<R> visitor) {
       return visitor.visitWhileStmt(this);
     }
 
-    final Expr condition;
-    final Stmt body;
+    public final Expr condition;
+    public final Stmt body;
   }
 
-  abstract <R> R accept(Visitor<R>  visitor);
+  public abstract <R> R accept(Visitor<R>  visitor);
 }
@@ -1,8 +1,33 @@
 package tok;
 
-import java.util.List;
-
 interface TokCallable {
+    /*
+     * Callers check the argument count against arity() before calling. Calls with up to four arguments go through
+     * the fixed-arity entry points, so no argument array is allocated for them, and any other call passes an array.
+     * The fixed-arity entry points default to the array one, for callables that have nothing to gain from them.
+     */
+
     int arity();
-    Object call(Interpreter interpreter, List<Object> arguments);
+
+    Object call(Interpreter interpreter, Object[] arguments);
+
+    default Object call0(Interpreter interpreter) {
+        return call(interpreter, new Object[0]);
+    }
+
+    default Object call1(Interpreter interpreter, Object a) {
+        return call(interpreter, new Object[]{a});
+    }
+
+    default Object call2(Interpreter interpreter, Object a, Object b) {
+        return call(interpreter, new Object[]{a, b});
+    }
+
+    default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        return call(interpreter, new Object[]{a, b, c});
+    }
+
+    default Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        return call(interpreter, new Object[]{a, b, c, d});
+    }
 }
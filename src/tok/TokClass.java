@@ -1,5 +1,6 @@
 package tok;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -10,25 +11,29 @@ public class TokClass implements TokCallable {
      */
 
     final String name;
-    final TokClass superclass;
+    // Every method an instance responds to, inherited ones included, so a lookup never walks the superclass chain.
     private final Map<String, TokFunction> methods;
+    private final TokFunction initializer;
+
+    // Every instance starts out with this empty shape, see Shape.
+    final Shape instanceShape = new Shape();
+    // The most fields any instance of this class has had, used to size the field arrays of new instances.
+    int instanceSize = 0;
 
     TokClass(String name, TokClass superclass, Map<String, TokFunction> methods) {
         this.name = name;
-        this.superclass = superclass;
-        this.methods = methods;
-    }
-
-    TokFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
 
+        Map<String, TokFunction> table = new HashMap<>();
         if (superclass != null) {
-            return superclass.findMethod(name);
+            table.putAll(superclass.methods);
         }
+        table.putAll(methods);
+        this.methods = table;
+        this.initializer = table.get("init");
+    }
 
-        return null;
+    TokFunction findMethod(String name) {
+        return methods.get(name);
     }
 
     @Override
@@ -37,18 +42,55 @@ public class TokClass implements TokCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        TokInstance instance = new TokInstance(this);
+        if (initializer != null) {
+            initializer.invoke(interpreter, instance, arguments);
+        }
+        return instance;
+    }
+
+    @Override
+    public Object call0(Interpreter interpreter) {
         TokInstance instance = new TokInstance(this);
-        TokFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke0(interpreter, instance);
         }
         return instance;
     }
 
+    // With arguments there is always an initializer, since the arity was checked.
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        TokInstance instance = new TokInstance(this);
+        initializer.invoke1(interpreter, instance, a);
+        return instance;
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        TokInstance instance = new TokInstance(this);
+        initializer.invoke2(interpreter, instance, a, b);
+        return instance;
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        TokInstance instance = new TokInstance(this);
+        initializer.invoke3(interpreter, instance, a, b, c);
+        return instance;
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        TokInstance instance = new TokInstance(this);
+        initializer.invoke4(interpreter, instance, a, b, c, d);
+        return instance;
+    }
+
     @Override
     public int arity() {
-        TokFunction initializer = findMethod("init");
         if (initializer == null) return 0;
         return initializer.arity();
     }
@@ -1,28 +1,55 @@
 package tok;
 
-import java.util.List;
-
 public class TokFunction implements TokCallable {
     /**
      * TokFunction is the runtime representation of a Tok Function.
      * The Stmt.Function AST node is converted into a Tok Function by the interpreter at runtime.
+     *
+     * Each call gets a frame holding the function's locals, with a method's receiver in slot 0 and the parameters in
+     * the slots after it, and an environment for the locals that closures capture (see Resolver). Calling
+     * obj.method() directly passes the receiver to one of the invoke methods; only a method that is read as a value
+     * gets bound to its receiver. A call in tail position does not call the function, but has it run by the call that
+     * is returning, see run().
      */
 
     private final Stmt.Function declaration;
     private final Environment closure;
 
+    // The body compiled by the ClosureCompiler, or null when the function runs on the tree-walking interpreter.
+    private final ClosureCompiler.StmtNode body;
+
+    private final boolean isMethod;
     private final boolean isInitializer;
+    // The frame slot of the first parameter.
+    final int parameterSlot;
+
+    // The instance a bound method was read from, null otherwise.
+    private final TokInstance receiver;
+
+    // A function.
+    TokFunction(Stmt.Function declaration, Environment closure, ClosureCompiler.StmtNode body) {
+        this(declaration, closure, body, false, false, null);
+    }
+
+    // A method, not yet bound to a receiver.
+    TokFunction(Stmt.Function declaration, Environment closure, ClosureCompiler.StmtNode body,
+                boolean isInitializer) {
+        this(declaration, closure, body, true, isInitializer, null);
+    }
 
-    TokFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    private TokFunction(Stmt.Function declaration, Environment closure, ClosureCompiler.StmtNode body,
+                        boolean isMethod, boolean isInitializer, TokInstance receiver) {
+        this.isMethod = isMethod;
         this.isInitializer = isInitializer;
+        this.parameterSlot = isMethod ? 1 : 0;
         this.closure = closure;
         this.declaration = declaration;
+        this.body = body;
+        this.receiver = receiver;
     }
 
     TokFunction bind(TokInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new TokFunction(declaration, environment, isInitializer);
+        return new TokFunction(declaration, closure, body, true, isInitializer, instance);
     }
 
     @Override
@@ -30,26 +57,165 @@ public class TokFunction implements TokCallable {
         return declaration.params.size();
     }
 
+    // The call and invoke methods fill the frame themselves rather than going through one another, since every Java
+    // frame between two Tok calls costs recursion depth.
+
+    @Override
+    public Object call(Interpreter interpreter, Object[] arguments) {
+        Object[] frame = frame(receiver);
+        System.arraycopy(arguments, 0, frame, parameterSlot, arguments.length);
+        return run(interpreter, frame);
+    }
+
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+    public Object call0(Interpreter interpreter) {
+        return run(interpreter, frame(receiver));
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a) {
+        Object[] frame = frame(receiver);
+        frame[parameterSlot] = a;
+        return run(interpreter, frame);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a, Object b) {
+        Object[] frame = frame(receiver);
+        frame[parameterSlot] = a;
+        frame[parameterSlot + 1] = b;
+        return run(interpreter, frame);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+        Object[] frame = frame(receiver);
+        frame[parameterSlot] = a;
+        frame[parameterSlot + 1] = b;
+        frame[parameterSlot + 2] = c;
+        return run(interpreter, frame);
+    }
+
+    @Override
+    public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+        Object[] frame = frame(receiver);
+        frame[parameterSlot] = a;
+        frame[parameterSlot + 1] = b;
+        frame[parameterSlot + 2] = c;
+        frame[parameterSlot + 3] = d;
+        return run(interpreter, frame);
+    }
+
+    // The invoke methods call the method with the given receiver, without binding it first.
+
+    Object invoke(Interpreter interpreter, TokInstance receiver, Object[] arguments) {
+        Object[] frame = frame(receiver);
+        System.arraycopy(arguments, 0, frame, parameterSlot, arguments.length);
+        return run(interpreter, frame);
+    }
+
+    Object invoke0(Interpreter interpreter, TokInstance receiver) {
+        return run(interpreter, frame(receiver));
+    }
+
+    Object invoke1(Interpreter interpreter, TokInstance receiver, Object a) {
+        Object[] frame = frame(receiver);
+        frame[parameterSlot] = a;
+        return run(interpreter, frame);
+    }
+
+    Object invoke2(Interpreter interpreter, TokInstance receiver, Object a, Object b) {
+        Object[] frame = frame(receiver);
+        frame[parameterSlot] = a;
+        frame[parameterSlot + 1] = b;
+        return run(interpreter, frame);
+    }
+
+    Object invoke3(Interpreter interpreter, TokInstance receiver, Object a, Object b, Object c) {
+        Object[] frame = frame(receiver);
+        frame[parameterSlot] = a;
+        frame[parameterSlot + 1] = b;
+        frame[parameterSlot + 2] = c;
+        return run(interpreter, frame);
+    }
+
+    Object invoke4(Interpreter interpreter, TokInstance receiver, Object a, Object b, Object c, Object d) {
+        Object[] frame = frame(receiver);
+        frame[parameterSlot] = a;
+        frame[parameterSlot + 1] = b;
+        frame[parameterSlot + 2] = c;
+        frame[parameterSlot + 3] = d;
+        return run(interpreter, frame);
+    }
+
+    // The frame for calling this function as a value, with a bound method's own receiver.
+    Object[] frame() {
+        return frame(receiver);
+    }
+
+    // A frame with the receiver of a method in slot 0, for the caller to store the arguments in from parameterSlot on.
+    Object[] frame(TokInstance receiver) {
+        Object[] frame = new Object[declaration.frameSize];
+        if (isMethod) {
+            frame[0] = receiver;
+        }
+        return frame;
+    }
+
+    // Runs the function on a frame holding its arguments, in this very Java frame. Only a body that returns with a
+    // tail call goes on to the trampoline, runTailCalls().
+    private Object run(Interpreter interpreter, Object[] frame) {
+        Environment environment = environment(frame);
+        Completion completion;
+        if (body != null) {
+            completion = body.execute(frame, environment);
+        } else {
+            completion = interpreter.executeBody(declaration.body, frame, environment);
         }
 
-        try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
-            return returnValue.value;
+        Object value = completion == Completion.RETURN ? interpreter.takeReturnValue() : null;
+        if (value == Interpreter.TAIL_CALL) return runTailCalls(interpreter);
+
+        // An initializer returns its receiver.
+        if (isInitializer) return frame[0];
+        return value;
+    }
+
+    // Runs the tail call a body returned with, on the frame the tail call set up, then the tail call that one returns
+    // with, and so on in a loop until a body returns a value.
+    private static Object runTailCalls(Interpreter interpreter) {
+        for (; ; ) {
+            TokFunction function = interpreter.tailFunction();
+            Object[] frame = interpreter.takeTailFrame();
+            Environment environment = function.environment(frame);
+            Completion completion;
+            if (function.body != null) {
+                completion = function.body.execute(frame, environment);
+            } else {
+                completion = interpreter.executeBody(function.declaration.body, frame, environment);
+            }
+
+            Object value = completion == Completion.RETURN ? interpreter.takeReturnValue() : null;
+            if (value != Interpreter.TAIL_CALL) {
+                if (function.isInitializer) return frame[0];
+                return value;
+            }
         }
+    }
+
+    // The environment of a call: the closure, or a new one for the locals that closures capture, see Resolver.
+    private Environment environment(Object[] frame) {
+        if (declaration.environmentSize == 0) return closure;
 
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
+        Environment environment = new Environment(closure, declaration.environmentSize);
+        for (int slot : declaration.capturedParameters) {
+            environment.define(frame[slot]);
+        }
+        return environment;
     }
 
     @Override
     public String toString() {
-        return "<fn " + declaration.name.lexeme + ">";
+        return "<fn " + declaration.name.lexeme() + ">";
     }
-}
\ No newline at end of file
+}
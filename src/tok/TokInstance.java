@@ -1,33 +1,79 @@
 package tok;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class TokInstance {
     /**
      * TokInstance is a runtime representation of an object of a Tok Class.
+     * Field names are kept in the instance's Shape, which is shared with every other instance laid out the same way,
+     * so the instance itself only holds the field values.
      */
 
+    private static final Object[] NO_FIELDS = new Object[0];
+
     private TokClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    private Shape shape;
+    private Object[] fields;
 
     TokInstance(TokClass klass) {
         this.klass = klass;
+        this.shape = klass.instanceShape;
+        // Instances of a class usually all end up with the same fields, so size the array for what the last ones had.
+        this.fields = klass.instanceSize == 0 ? NO_FIELDS : new Object[klass.instanceSize];
     }
 
-    Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+    // A field, or else a method bound to this instance, resolved through the inline cache of the access site.
+    Object get(Token name, PropertyCache cache) {
+        int entry = cache.lookup(shape);
+        if (entry != -1) {
+            int index = cache.index(entry);
+            if (index != -1) return fields[index];
+            return cache.method(entry).bind(this);
+        }
+
+        int index = shape.indexOf(name.lexeme());
+        if (index != -1) {
+            cache.addField(shape, index);
+            return fields[index];
         }
 
-        TokFunction method = klass.findMethod(name.lexeme);
-        if (method != null) return method.bind(this);
+        TokFunction method = klass.findMethod(name.lexeme());
+        if (method != null) {
+            cache.addMethod(shape, method);
+            return method.bind(this);
+        }
 
-        throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+        throw new RuntimeError(name, "Undefined property '" + name.lexeme() + "'.");
+    }
+
+    // The method a call of obj.name() invokes, unbound, or null if the name is a field or undefined, which get()
+    // then resolves or reports.
+    TokFunction findMethod(Token name, PropertyCache cache) {
+        int entry = cache.lookup(shape);
+        if (entry != -1) return cache.method(entry);
+
+        if (shape.indexOf(name.lexeme()) != -1) return null;
+
+        TokFunction method = klass.findMethod(name.lexeme());
+        if (method != null) cache.addMethod(shape, method);
+        return method;
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int index = shape.indexOf(name.lexeme());
+        if (index == -1) {
+            shape = shape.withField(name.lexeme());
+            index = shape.size - 1;
+
+            if (index == fields.length) {
+                fields = Arrays.copyOf(fields, Math.max(4, fields.length * 2));
+            }
+            if (shape.size > klass.instanceSize) {
+                klass.instanceSize = shape.size;
+            }
+        }
+
+        fields[index] = value;
     }
 
     @Override
@@ -1,19 +1,37 @@
 package tok;
 
-class Token {
-    final TokenType type;
-    final String lexeme;
-    final Object literal;
-    final int line;
+public class Token {
+    /*
+     * A token is a span of the source: its text is only copied out of the source the first time its lexeme is asked
+     * for, which for most tokens - punctuation, keywords, literals - is never, or only to report an error. The
+     * Scanner hands identifiers their lexeme up front, the same String for every occurrence of a name.
+     */
 
-    Token(TokenType type, String lexeme, Object literal, int line) {
+    public final TokenType type;
+    public final Object literal;
+    public final int line;
+
+    private final CharSequence source;
+    private final int offset;
+    private final int length;
+    private String lexeme;
+
+    Token(TokenType type, CharSequence source, int offset, int length, String lexeme, Object literal, int line) {
         this.type = type;
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
     }
 
+    public String lexeme() {
+        if (lexeme == null) lexeme = source.subSequence(offset, offset + length).toString();
+        return lexeme;
+    }
+
     public String toString() {
-        return type + " " + lexeme + " " + literal;
+        return type + " " + lexeme() + " " + literal;
     }
 }
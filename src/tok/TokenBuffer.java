@@ -0,0 +1,74 @@
+package tok;
+
+final class TokenBuffer {
+    /*
+     * The tokens between the Scanner and the Parser, packed into parallel arrays rather than an object each: the
+     * type's ordinal, where the token is in the source and its line. Most tokens are only ever looked at by type -
+     * punctuation, keywords - so the Parser reads types straight off the array and asks for a Token only when the AST
+     * keeps one. The values side table holds an identifier's interned name and a literal's value, and is null for the
+     * rest.
+     *
+     * The Parser never looks further than one token ahead or one back, so the buffer is a ring of the last CAPACITY
+     * tokens: asking for a token that has not been scanned yet has the Scanner scan up to it, and the tokens before
+     * the ring are gone. The whole token list of a script never exists at once.
+     */
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private static final int CAPACITY = 8;
+    private static final int MASK = CAPACITY - 1;
+
+    private final Scanner scanner;
+    private final CharSequence source;
+
+    private final byte[] types = new byte[CAPACITY];
+    private final int[] offsets = new int[CAPACITY];
+    private final int[] lengths = new int[CAPACITY];
+    private final int[] lines = new int[CAPACITY];
+    private final Object[] values = new Object[CAPACITY];
+    // The number of tokens scanned so far, which is the index of the next one.
+    private int count = 0;
+
+    TokenBuffer(Scanner scanner, CharSequence source) {
+        this.scanner = scanner;
+        this.source = source;
+    }
+
+    void add(TokenType type, int offset, int length, Object value, int line) {
+        int slot = count & MASK;
+        types[slot] = (byte) type.ordinal();
+        offsets[slot] = offset;
+        lengths[slot] = length;
+        lines[slot] = line;
+        values[slot] = value;
+        count++;
+    }
+
+    int size() {
+        return count;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[slot(index)]];
+    }
+
+    // The value of a NUMBER or STRING token.
+    Object literal(int index) {
+        int slot = slot(index);
+        return types[slot] == TokenType.IDENTIFIER.ordinal() ? null : values[slot];
+    }
+
+    Token token(int index) {
+        int slot = slot(index);
+        TokenType type = TYPES[types[slot]];
+        if (type == TokenType.IDENTIFIER) {
+            return new Token(type, source, offsets[slot], lengths[slot], (String) values[slot], null, lines[slot]);
+        }
+        return new Token(type, source, offsets[slot], lengths[slot], null, values[slot], lines[slot]);
+    }
+
+    private int slot(int index) {
+        while (index >= count) scanner.scanToken();
+        return index & MASK;
+    }
+}
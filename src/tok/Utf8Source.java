@@ -0,0 +1,63 @@
+package tok;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+final class Utf8Source implements CharSequence {
+    /*
+     * A UTF-8 script as the Scanner reads it, without decoding it first: the chars are the bytes of the source, so a
+     * script can be scanned straight out of a mapped file. Everything the Scanner looks at - punctuation, digits,
+     * identifiers, keywords - is ASCII, whose bytes are its chars. The other characters only occur in string literals
+     * and comments, or as an unexpected character: a multi-byte character reads as its lead byte followed by
+     * CONTINUATION for each of its other bytes, which the Scanner skips, so it is reported once.
+     *
+     * Text is decoded when it is copied out of the source, in toString(), which only string literals and lexemes do.
+     */
+
+    // What the second and later bytes of a multi-byte character read as. U+FFFF is not a character.
+    static final char CONTINUATION = '\uFFFF';
+
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int length;
+
+    Utf8Source(ByteBuffer bytes) {
+        this(bytes, 0, bytes.limit());
+    }
+
+    private Utf8Source(ByteBuffer bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        byte b = bytes.get(offset + index);
+        if (b >= 0) return (char) b;
+        if ((b & 0xc0) == 0x80) return CONTINUATION;
+        return (char) (b & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new Utf8Source(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        byte[] text = new byte[length];
+        boolean ascii = true;
+        for (int i = 0; i < length; i++) {
+            text[i] = bytes.get(offset + i);
+            if (text[i] < 0) ascii = false;
+        }
+        // ASCII text is its bytes, with no decoding to do.
+        return new String(text, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+    }
+}
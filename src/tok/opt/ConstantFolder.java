@@ -0,0 +1,230 @@
+package tok.opt;
+
+import java.util.Collections;
+import java.util.List;
+
+import tok.Expr;
+import tok.Interpreter;
+import tok.Stmt;
+import tok.Token;
+import tok.TokenType;
+
+public class ConstantFolder extends AstRewriter {
+    /*
+     * The ConstantFolder rewrites a parsed program before it runs. It evaluates the operators whose operands are
+     * literals, drops groupings, shortcuts and/or over a literal, applies the numeric identities that hold for every
+     * number (e * 1, e / 1, e - 0, -(-e) where e is known to be a number), and prunes the if branches and loops that
+     * a literal condition rules out.
+     *
+     * Folding never changes what a program does. An operator that would fail - "Cannot divide by 0.", an operand of
+     * the wrong type - is left for the Interpreter to report at its own line, and folded numbers are the doubles the
+     * Interpreter would compute. Folding rebuilds nodes, so the Resolver runs again on the folded program.
+     */
+
+    // What evaluate() returns for an operator that fails at runtime.
+    private static final Object NOT_CONSTANT = new Object();
+
+    public List<Stmt> fold(List<Stmt> statements) {
+        return rewrite(statements);
+    }
+
+    // Statements.
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        // A literal on its own does nothing.
+        if (expression instanceof Expr.Literal) return null;
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt initializer = rewrite(stmt.initializer);
+        Expr condition = rewrite(stmt.condition);
+
+        if (condition instanceof Expr.Literal) {
+            if (!Interpreter.isTruthy(((Expr.Literal) condition).value)) {
+                // Only the initializer runs, still in a scope of its own.
+                if (initializer == null) return null;
+                return new Stmt.Block(Collections.singletonList(initializer));
+            }
+
+            // A condition that always holds is no condition.
+            condition = null;
+        }
+
+        Expr increment = rewrite(stmt.increment);
+        if (increment instanceof Expr.Literal) increment = null;
+        Stmt body = rewriteBody(stmt.body);
+
+        if (initializer == stmt.initializer && condition == stmt.condition && increment == stmt.increment
+                && body == stmt.body) {
+            return stmt;
+        }
+        return new Stmt.For(initializer, condition, increment, body);
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+
+        if (condition instanceof Expr.Literal) {
+            if (Interpreter.isTruthy(((Expr.Literal) condition).value)) return rewrite(stmt.thenBranch);
+            return rewrite(stmt.elseBranch);
+        }
+
+        Stmt thenBranch = rewriteBody(stmt.thenBranch);
+        Stmt elseBranch = rewrite(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal) condition).value)) return null;
+
+        Stmt body = rewriteBody(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    // Expressions.
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+
+        if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+            Object value = evaluate(expr.operator, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+            if (value != NOT_CONSTANT) return new Expr.Literal(value);
+        }
+
+        switch (expr.operator.type) {
+            case STAR:
+                if (isNumber(left) && isLiteral(right, 1)) return left;
+                if (isLiteral(left, 1) && isNumber(right)) return right;
+                break;
+            case SLASH:
+                if (isNumber(left) && isLiteral(right, 1)) return left;
+                break;
+            case MINUS:
+                // Not e + 0, which turns -0 into 0.
+                if (isNumber(left) && isLiteral(right, 0)) return left;
+                break;
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    // The value of a binary operator on two literal operands, or NOT_CONSTANT if it fails.
+    private static Object evaluate(Token operator, Object left, Object right) {
+        switch (operator.type) {
+            case BANG_EQUAL:
+                return !Interpreter.isEqual(left, right);
+            case EQUAL_EQUAL:
+                return Interpreter.isEqual(left, right);
+            case PLUS:
+                if (left instanceof String && right instanceof String) return (String) left + (String) right;
+                break;
+        }
+
+        if (!(left instanceof Double && right instanceof Double)) return NOT_CONSTANT;
+
+        double x = (double) left;
+        double y = (double) right;
+        if (operator.type == TokenType.SLASH && y == 0.0) return NOT_CONSTANT;
+        switch (operator.type) {
+            case GREATER:
+                return x > y;
+            case GREATER_EQUAL:
+                return x >= y;
+            case LESS:
+                return x < y;
+            case LESS_EQUAL:
+                return x <= y;
+            case MINUS:
+                return x - y;
+            case STAR:
+                return x * y;
+            case SLASH:
+                return x / y;
+            default:
+                return x + y;
+        }
+    }
+
+    // Whether an expression can only produce a number, or fail: the expressions the ClosureCompiler gives a number
+    // channel.
+    private static boolean isNumber(Expr expr) {
+        if (expr instanceof Expr.Literal) return ((Expr.Literal) expr).value instanceof Double;
+        if (expr instanceof Expr.Unary) return ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+        if (!(expr instanceof Expr.Binary)) return false;
+
+        Expr.Binary binary = (Expr.Binary) expr;
+        switch (binary.operator.type) {
+            case MINUS:
+            case SLASH:
+            case STAR:
+                return true;
+            case PLUS:
+                return isNumber(binary.left) || isNumber(binary.right);
+            default:
+                return false;
+        }
+    }
+
+    // Whether an expression is the literal number, which for 0 means +0 only.
+    private static boolean isLiteral(Expr expr, int number) {
+        if (!(expr instanceof Expr.Literal) || !(((Expr.Literal) expr).value instanceof Double)) return false;
+        double value = (double) ((Expr.Literal) expr).value;
+        return Double.doubleToLongBits(value) == Double.doubleToLongBits(number);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        // A grouping only matters to the parser.
+        return rewrite(expr.expression);
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = rewrite(expr.left);
+        Expr right = rewrite(expr.right);
+
+        if (left instanceof Expr.Literal) {
+            boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+            // The left operand is the value of a true "or" and a false "and", the right operand decides the others.
+            if (expr.operator.type == TokenType.OR) return truthy ? left : right;
+            return truthy ? right : left;
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+
+        if (right instanceof Expr.Literal) {
+            Object value = ((Expr.Literal) right).value;
+            if (expr.operator.type == TokenType.BANG) return new Expr.Literal(!Interpreter.isTruthy(value));
+            if (value instanceof Double) return new Expr.Literal(-(double) value);
+        }
+
+        // -(-e) is e, for a number.
+        if (expr.operator.type == TokenType.MINUS && right instanceof Expr.Unary) {
+            Expr.Unary inner = (Expr.Unary) right;
+            if (inner.operator.type == TokenType.MINUS && isNumber(inner.right)) return inner.right;
+        }
+
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+}
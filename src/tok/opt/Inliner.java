@@ -0,0 +1,284 @@
+package tok.opt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+import tok.Expr;
+import tok.Stmt;
+import tok.Token;
+
+public class Inliner extends AstRewriter {
+    /*
+     * The Inliner replaces calls to small functions by the expression the function returns, with the arguments
+     * substituted for the parameters, sparing the call and its frame. It only inlines what it can prove makes no
+     * difference to the program:
+     *
+     * - The function is declared once, at the top level, and its name is never assigned, so a call to the name after
+     *   the declaration always calls it. Code before the declaration may run before the function exists, so only calls
+     *   that come after it in the program are inlined - which also rules out recursion.
+     * - Its body is a single return of an expression of at most BUDGET nodes that has no effects of its own: no
+     *   calls, assignments or property accesses, only literals, variables and operators.
+     * - Every argument is a literal or a local variable, which reads the same however often and whenever it is
+     *   evaluated, so substituting it for each use of its parameter changes nothing.
+     * - At the call site, neither the function's name nor the globals its expression reads are shadowed by a local.
+     *
+     * Operators keep their tokens, so an error in an inlined expression still reports the line in the function body.
+     * Inlining needs the whole program, so it is for scripts only: a later line in the REPL could redefine anything.
+     */
+
+    // The most nodes an inlined expression may have.
+    private static final int BUDGET = 16;
+
+    // A function that calls can be replaced by.
+    private static final class Candidate {
+        final List<Token> params;
+        final Expr body;
+        // The names the body reads that are not parameters.
+        final Set<String> globals;
+
+        Candidate(List<Token> params, Expr body, Set<String> globals) {
+            this.params = params;
+            this.body = body;
+            this.globals = globals;
+        }
+    }
+
+    private final Map<String, Candidate> candidates = new HashMap<>();
+    // The locals declared so far in each enclosing scope, innermost last. Empty at the top level.
+    private final Stack<Set<String>> scopes = new Stack<>();
+
+    public List<Stmt> inline(List<Stmt> statements) {
+        Set<String> constants = constantFunctions(statements);
+
+        List<Stmt> inlined = new ArrayList<>(statements.size());
+        boolean changed = false;
+        for (Stmt statement : statements) {
+            Stmt result = rewrite(statement);
+            if (result != statement) changed = true;
+            inlined.add(result);
+
+            // Calls in the statements that follow run after the function has been defined.
+            if (result instanceof Stmt.Function) {
+                Stmt.Function function = (Stmt.Function) result;
+                if (constants.contains(function.name.lexeme())) candidate(function);
+            }
+        }
+        return changed ? inlined : statements;
+    }
+
+    // The top-level functions whose name is declared nowhere else at the top level and is never assigned.
+    private static Set<String> constantFunctions(List<Stmt> statements) {
+        Map<String, Integer> declarations = new HashMap<>();
+        Set<String> functions = new HashSet<>();
+        for (Stmt statement : statements) {
+            Token name = null;
+            if (statement instanceof Stmt.Function) {
+                name = ((Stmt.Function) statement).name;
+                functions.add(name.lexeme());
+            } else if (statement instanceof Stmt.Var) {
+                name = ((Stmt.Var) statement).name;
+            } else if (statement instanceof Stmt.Class) {
+                name = ((Stmt.Class) statement).name;
+            }
+            if (name != null) declarations.merge(name.lexeme(), 1, Integer::sum);
+        }
+
+        Set<String> assigned = new HashSet<>();
+        new AstRewriter() {
+            @Override
+            public Expr visitAssignExpr(Expr.Assign expr) {
+                assigned.add(expr.name.lexeme());
+                return super.visitAssignExpr(expr);
+            }
+        }.rewrite(statements);
+
+        Set<String> constants = new HashSet<>();
+        for (String function : functions) {
+            if (declarations.get(function) == 1 && !assigned.contains(function)) constants.add(function);
+        }
+        return constants;
+    }
+
+    private void candidate(Stmt.Function function) {
+        if (function.body.size() != 1 || !(function.body.get(0) instanceof Stmt.Return)) return;
+        Expr body = ((Stmt.Return) function.body.get(0)).value;
+        if (body == null) return;
+
+        int size = size(body);
+        if (size == -1 || size > BUDGET) return;
+
+        Set<String> params = new HashSet<>();
+        for (Token param : function.params) {
+            params.add(param.lexeme());
+        }
+        Set<String> globals = new HashSet<>();
+        names(body, globals);
+        globals.removeAll(params);
+
+        candidates.put(function.name.lexeme(), new Candidate(function.params, body, globals));
+    }
+
+    // The number of nodes in an expression, or -1 if it has effects of its own.
+    private static int size(Expr expr) {
+        if (expr instanceof Expr.Literal || expr instanceof Expr.Variable) return 1;
+        if (expr instanceof Expr.Grouping) return size(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Unary) {
+            int right = size(((Expr.Unary) expr).right);
+            return right == -1 ? -1 : right + 1;
+        }
+
+        Expr left;
+        Expr right;
+        if (expr instanceof Expr.Binary) {
+            left = ((Expr.Binary) expr).left;
+            right = ((Expr.Binary) expr).right;
+        } else if (expr instanceof Expr.Logical) {
+            left = ((Expr.Logical) expr).left;
+            right = ((Expr.Logical) expr).right;
+        } else {
+            return -1;
+        }
+
+        int leftSize = size(left);
+        int rightSize = size(right);
+        if (leftSize == -1 || rightSize == -1) return -1;
+        return leftSize + rightSize + 1;
+    }
+
+    // The variable names an expression of size() != -1 reads.
+    private static void names(Expr expr, Set<String> names) {
+        if (expr instanceof Expr.Variable) {
+            names.add(((Expr.Variable) expr).name.lexeme());
+        } else if (expr instanceof Expr.Grouping) {
+            names(((Expr.Grouping) expr).expression, names);
+        } else if (expr instanceof Expr.Unary) {
+            names(((Expr.Unary) expr).right, names);
+        } else if (expr instanceof Expr.Binary) {
+            names(((Expr.Binary) expr).left, names);
+            names(((Expr.Binary) expr).right, names);
+        } else if (expr instanceof Expr.Logical) {
+            names(((Expr.Logical) expr).left, names);
+            names(((Expr.Logical) expr).right, names);
+        }
+    }
+
+    // A fresh copy of an expression of size() != -1, with the parameters replaced by their arguments. Every inlined
+    // copy gets nodes of its own, since the Resolver and the runtime keep state on them.
+    private static Expr copy(Expr expr, Map<String, Expr> arguments) {
+        if (expr instanceof Expr.Literal) {
+            return new Expr.Literal(((Expr.Literal) expr).value);
+        }
+        if (expr instanceof Expr.Variable) {
+            Token name = ((Expr.Variable) expr).name;
+            Expr argument = arguments.get(name.lexeme());
+            if (argument != null) return copy(argument, new HashMap<>());
+            return new Expr.Variable(name);
+        }
+        if (expr instanceof Expr.Grouping) {
+            return new Expr.Grouping(copy(((Expr.Grouping) expr).expression, arguments));
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return new Expr.Unary(unary.operator, copy(unary.right, arguments));
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            return new Expr.Binary(copy(binary.left, arguments), binary.operator, copy(binary.right, arguments));
+        }
+
+        Expr.Logical logical = (Expr.Logical) expr;
+        return new Expr.Logical(copy(logical.left, arguments), logical.operator, copy(logical.right, arguments));
+    }
+
+    private void declare(Token name) {
+        if (!scopes.isEmpty()) scopes.peek().add(name.lexeme());
+    }
+
+    private boolean isLocal(String name) {
+        for (Set<String> scope : scopes) {
+            if (scope.contains(name)) return true;
+        }
+        return false;
+    }
+
+    @Override
+    Stmt.Function rewriteFunction(Stmt.Function function) {
+        Set<String> scope = new HashSet<>();
+        for (Token param : function.params) {
+            scope.add(param.lexeme());
+        }
+
+        scopes.push(scope);
+        Stmt.Function rewritten = super.rewriteFunction(function);
+        scopes.pop();
+        return rewritten;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        scopes.push(new HashSet<>());
+        Stmt rewritten = super.visitBlockStmt(stmt);
+        scopes.pop();
+        return rewritten;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        declare(stmt.name);
+        return super.visitClassStmt(stmt);
+    }
+
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        scopes.push(new HashSet<>());
+        Stmt rewritten = super.visitForStmt(stmt);
+        scopes.pop();
+        return rewritten;
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        declare(stmt.name);
+        return super.visitFunctionStmt(stmt);
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        // A local is in scope in its own initializer, like the Resolver has it: var g = f(); must not inline a read
+        // of a global g.
+        declare(stmt.name);
+        return super.visitVarStmt(stmt);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr.Call call = (Expr.Call) super.visitCallExpr(expr);
+        if (!(call.callee instanceof Expr.Variable)) return call;
+
+        String name = ((Expr.Variable) call.callee).name.lexeme();
+        Candidate candidate = candidates.get(name);
+        if (candidate == null || isLocal(name)) return call;
+        // A call with the wrong number of arguments is left to fail at runtime.
+        if (call.arguments.size() != candidate.params.size()) return call;
+
+        for (String global : candidate.globals) {
+            if (isLocal(global)) return call;
+        }
+
+        Map<String, Expr> arguments = new HashMap<>();
+        for (int i = 0; i < call.arguments.size(); i++) {
+            Expr argument = call.arguments.get(i);
+            boolean constant = argument instanceof Expr.Literal
+                    || (argument instanceof Expr.Variable && isLocal(((Expr.Variable) argument).name.lexeme()));
+            if (!constant) return call;
+            arguments.put(candidate.params.get(i).lexeme(), argument);
+        }
+
+        return copy(candidate.body, arguments);
+    }
+}
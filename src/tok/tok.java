@@ -3,30 +3,66 @@ package tok;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
 
+import tok.opt.ConstantFolder;
+import tok.opt.Inliner;
+import tok.vm.VM;
+
 public class tok {
-    private static final Interpreter interpreter = new Interpreter();
+    private static Interpreter interpreter = new Interpreter(false);
+    // Set when running on the bytecode VM instead of the tree-walking interpreter.
+    private static VM vm = null;
+    // Set when compiling the AST to closures instead of walking it.
+    private static boolean compile = false;
+    // Whether scripts get small functions inlined, see Inliner.
+    private static boolean inline = true;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
+    // Cleared while re-resolving an optimized program, whose errors are not the user's to see.
+    private static boolean reporting = true;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: tok [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        String script = null;
+        // The engine flags are alternatives, as the usage has them: asking for two engines is a usage error.
+        String engine = null;
+        for (String arg : args) {
+            boolean isEngine = arg.equals("--vm") || arg.equals("--specialize") || arg.equals("--compile");
+            if (isEngine && (engine == null || engine.equals(arg))) {
+                engine = arg;
+            } else if (arg.equals("--no-inline")) {
+                inline = false;
+            } else if (script == null && !arg.startsWith("--")) {
+                script = arg;
+            } else {
+                System.out.println("Usage: tok [--vm | --specialize | --compile] [--no-inline] [script]");
+                System.exit(64);
+            }
+        }
+
+        if ("--vm".equals(engine)) {
+            vm = new VM();
+        } else if ("--specialize".equals(engine)) {
+            interpreter = new Interpreter(true);
+        } else if ("--compile".equals(engine)) {
+            compile = true;
+        }
+
+        if (script != null) {
+            runFile(script);
         } else {
             runPrompt();
         }
     }
 
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        // The script is scanned straight out of the mapped file rather than read into a String, see Utf8Source.
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            run(new Utf8Source(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())), inline);
+        }
 
         // Indicate an error in the exit code
         if (hadError) System.exit(65);
@@ -47,50 +83,91 @@ public class tok {
              so we check for that to exit the loop.
              */
             if (line == null) break;
-            run(line);
+
+            // Nothing about a line outlives its execution except what it defines: resolution data is stored on the
+            // line's own AST, so once the statements have run, everything not reachable from a global is garbage.
+            run(line, false);
             // if the user had an error, we don't want to kill the entire session
             hadError = false;
         }
     }
 
-    private static void run(String source) {
+    // Only a whole program can be inlined: a later line in the REPL could redefine any function.
+    private static void run(CharSequence source, boolean inlining) {
+        // The Parser pulls the tokens from the Scanner as it goes.
         Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
-
-        Parser parser = new Parser(tokens);
+        Parser parser = new Parser(scanner.tokens());
         List<Stmt> statements = parser.parse();
 
         // Stop if there was a syntax error.
         if (hadError) return;
 
-        Resolver resolver = new Resolver(interpreter);
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
 
         // Stop if there was a resolution error.
         if (hadError) return;
 
-        interpreter.interpret(statements);
+        // The optimizations may prune code, so they only run once the whole program has been checked, and the
+        // optimized program is resolved again for the nodes they rebuilt. The program as written resolved, so an error
+        // now is a bug in an optimization: the program then runs as written instead.
+        List<Stmt> optimized = inlining ? new Inliner().inline(statements) : statements;
+        optimized = new ConstantFolder().fold(optimized);
+        Resolver optimizedResolver = new Resolver();
+        if (resolveQuietly(optimizedResolver, optimized)) {
+            statements = optimized;
+            resolver = optimizedResolver;
+        } else {
+            resolver = new Resolver();
+            resolver.resolve(statements);
+        }
+
+        if (vm != null) {
+            vm.interpret(statements);
+        } else if (compile) {
+            interpreter.interpret(new ClosureCompiler(interpreter).compile(statements), resolver.frameSize());
+        } else {
+            interpreter.interpret(statements, resolver.frameSize());
+        }
     }
 
-    static void error(int line, String message) {
+    // Resolves without reporting errors, and tells whether there were none.
+    private static boolean resolveQuietly(Resolver resolver, List<Stmt> statements) {
+        reporting = false;
+        try {
+            resolver.resolve(statements);
+        } finally {
+            reporting = true;
+        }
+
+        boolean resolved = !hadError;
+        hadError = false;
+        return resolved;
+    }
+
+    public static void error(int line, String message) {
         report(line, "", message);
     }
 
     private static void report(int line, String where, String message) {
-        System.err.println("[line " + line + "] Error" + where + ": " + message);
+        if (reporting) System.err.println("[line " + line + "] Error" + where + ": " + message);
         hadError = true;
     }
 
-    static void error(Token token, String message) {
+    public static void error(Token token, String message) {
         if (token.type == TokenType.EOF) {
             report(token.line, " at end", message);
         } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+            report(token.line, " at '" + token.lexeme() + "'", message);
         }
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+        runtimeError(error.getMessage(), error.token.line);
+    }
+
+    public static void runtimeError(String message, int line) {
+        System.err.println(message + "\n[line " + line + "]");
         hadRuntimeError = true;
     }
 
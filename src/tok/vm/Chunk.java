@@ -0,0 +1,104 @@
+package tok.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+final class Chunk {
+    /**
+     * A Chunk is a compiled sequence of bytecode along with its constant pool.
+     * The line table runs parallel to the code so that a runtime error at any instruction can be reported
+     * at the same source line the tree-walking interpreter would report it at.
+     *
+     * Number and string literals past the first half of the short-addressable pool go to a separate long region,
+     * which is laid out after the pool when the chunk is frozen. Names, globals and functions, which only the
+     * two-byte operands can reach, therefore always have room no matter how many literals a script holds.
+     */
+
+    // The pool entries literals may take before they move to the long region.
+    private static final int SHORT_LITERALS = 0x8000;
+    private static final int MAX_CONSTANTS = 0x1000000;
+
+    byte[] code = new byte[8];
+    int[] lines = new int[8];
+    int count = 0;
+
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndices = new HashMap<>();
+    private final List<Object> longConstants = new ArrayList<>();
+    private final Map<Object, Integer> longConstantIndices = new HashMap<>();
+    // Code offsets of CONSTANT_LONG operands, which hold indices into the long region until freeze() rebases them.
+    private int[] longOperands = new int[0];
+    private int longOperandCount = 0;
+    Object[] constantPool;
+
+    void write(byte b, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+
+        code[count] = b;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        // Equal constants (names and number literals in particular) share a single pool entry. Globals and functions
+        // do not override equals(), so they are only shared with themselves.
+        Integer index = constantIndices.get(value);
+        if (index != null) return index;
+
+        constants.add(value);
+        constantIndices.put(value, constants.size() - 1);
+        return constants.size() - 1;
+    }
+
+    int addLiteral(Object value) {
+        // The index of a literal the short CONSTANT form can load, or -1 if it belongs in the long region.
+        Integer index = constantIndices.get(value);
+        if (index != null) return index;
+        return constants.size() < SHORT_LITERALS ? addConstant(value) : -1;
+    }
+
+    boolean writeLongConstant(Object value, int line) {
+        // Writes the three-byte operand of a CONSTANT_LONG, or returns false if the pool as a whole would overflow it.
+        Integer index = longConstantIndices.get(value);
+        if (index == null) {
+            if (constants.size() + longConstants.size() >= MAX_CONSTANTS) return false;
+            index = longConstants.size();
+            longConstants.add(value);
+            longConstantIndices.put(value, index);
+        }
+
+        if (longOperandCount == longOperands.length) {
+            longOperands = Arrays.copyOf(longOperands, Math.max(8, longOperandCount * 2));
+        }
+        longOperands[longOperandCount++] = count;
+        write((byte) (index >> 16), line);
+        write((byte) (index >> 8), line);
+        write((byte) (int) index, line);
+        return true;
+    }
+
+    void freeze() {
+        // Trim the buffers and flatten the constant pool into an array the VM can index directly.
+        code = Arrays.copyOf(code, count);
+        lines = Arrays.copyOf(lines, count);
+
+        int longBase = constants.size();
+        constants.addAll(longConstants);
+        constantPool = constants.toArray();
+
+        for (int i = 0; i < longOperandCount; i++) {
+            int offset = longOperands[i];
+            int index = longBase + (((code[offset] & 0xff) << 16) | ((code[offset + 1] & 0xff) << 8)
+                    | (code[offset + 2] & 0xff));
+            code[offset] = (byte) (index >> 16);
+            code[offset + 1] = (byte) (index >> 8);
+            code[offset + 2] = (byte) index;
+        }
+    }
+}
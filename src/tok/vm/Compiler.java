@@ -0,0 +1,758 @@
+package tok.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import tok.Expr;
+import tok.Stmt;
+import tok.Token;
+import tok.TokenType;
+import tok.tok;
+
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    /*
+     * The Compiler walks the resolved AST once and emits bytecode for the VM.
+     * It runs after the Resolver, so programs that reach it are already free of static errors - it only has to
+     * enforce the limits of the bytecode format itself.
+     *
+     * Locals live in stack slots of the function's frame and are resolved to slot indices here, variables captured by
+     * nested functions are resolved to upvalues, and everything else is a global.
+     */
+
+    private static final int MAX_LOCALS = 0x10000;
+    private static final int MAX_UPVALUES = 256;
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        INITIALIZER,
+        METHOD
+    }
+
+    private static class Local {
+        final String name;
+        int depth;
+        boolean isCaptured = false;
+
+        Local(String name, int depth) {
+            this.name = name;
+            this.depth = depth;
+        }
+    }
+
+    private static class Upvalue {
+        final int index;
+        final boolean isLocal;
+
+        Upvalue(int index, boolean isLocal) {
+            this.index = index;
+            this.isLocal = isLocal;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final ObjFunction function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        final List<Upvalue> upvalues = new ArrayList<>();
+        int scopeDepth = 0;
+        int stackDepth = 0;
+
+        FunctionState(FunctionState enclosing, ObjFunction function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+
+            // Slot zero holds the function being called, or the receiver inside methods.
+            String slotZero = type == FunctionType.METHOD || type == FunctionType.INITIALIZER ? "this" : "";
+            locals.add(new Local(slotZero, 0));
+            stackDepth = 1;
+            function.maxStack = 1;
+        }
+    }
+
+    private final VM vm;
+    private FunctionState current;
+    private boolean hadError = false;
+
+    // The line of the most recently compiled token, used for instructions that have no token of their own.
+    private int lastLine = 1;
+
+    Compiler(VM vm) {
+        this.vm = vm;
+    }
+
+    ObjFunction compile(List<Stmt> statements) {
+        current = new FunctionState(null, new ObjFunction(null), FunctionType.SCRIPT);
+
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+
+        ObjFunction script = endFunction(lastLine);
+        return hadError ? null : script;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    private ObjFunction endFunction(int line) {
+        emitReturn(line);
+        ObjFunction function = current.function;
+        function.upvalueCount = current.upvalues.size();
+        function.chunk.freeze();
+        return function;
+    }
+
+    // Statements.
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope(lastLine);
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        Token name = stmt.name;
+        int line = name.line;
+        lastLine = line;
+        int nameConstant = nameConstant(name.lexeme(), name);
+
+        // The class value lives in a stack slot while its methods are attached. For a local class that slot is the
+        // variable itself; a global class is only defined once the class is complete, so a failing superclass
+        // leaves the name undefined exactly like the tree-walking interpreter does.
+        boolean isGlobal = current.scopeDepth == 0;
+        if (isGlobal) {
+            current.locals.add(new Local("", 0));
+        } else {
+            declareLocal(name);
+        }
+        int classSlot = current.locals.size() - 1;
+
+        emitOp(OpCode.CLASS, line, 1);
+        emitShort(nameConstant, line);
+        if (!isGlobal) markInitialized();
+
+        if (stmt.superclass != null) {
+            beginScope();
+            visitVariableExpr(stmt.superclass);
+            current.locals.add(new Local("super", current.scopeDepth));
+
+            emitGetLocal(classSlot, line);
+            emitOp(OpCode.INHERIT, stmt.superclass.name.line, -1);
+        }
+
+        emitGetLocal(classSlot, line);
+
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = method.name.lexeme().equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method, type);
+            emitOp(OpCode.METHOD, method.name.line, -1);
+            emitShort(nameConstant(method.name.lexeme(), method.name), method.name.line);
+        }
+        emitOp(OpCode.POP, line, -1);
+
+        if (stmt.superclass != null) endScope(line);
+
+        if (isGlobal) {
+            emitOp(OpCode.DEFINE_GLOBAL, line, -1);
+            emitShort(globalConstant(name), line);
+            current.locals.remove(current.locals.size() - 1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.POP, lastLine, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        lastLine = stmt.name.line;
+        if (current.scopeDepth > 0) {
+            declareLocal(stmt.name);
+            // A function may refer to itself recursively, so its name is usable before the body is compiled.
+            markInitialized();
+        }
+
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int line = lastLine;
+
+        int thenJump = emitJump(OpCode.JUMP_IF_FALSE, line);
+        emitOp(OpCode.POP, line, -1);
+        compile(stmt.thenBranch);
+
+        int elseJump = emitJump(OpCode.JUMP, line);
+        patchJump(thenJump, line);
+        // The condition is still on the stack when the then-branch is skipped.
+        current.stackDepth++;
+        emitOp(OpCode.POP, line, -1);
+        if (stmt.elseBranch != null) compile(stmt.elseBranch);
+        patchJump(elseJump, line);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.PRINT, lastLine, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        int line = stmt.keyword.line;
+        lastLine = line;
+        if (stmt.value == null) {
+            emitReturn(line);
+        } else {
+            if (stmt.value instanceof Expr.Call) {
+                call((Expr.Call) stmt.value, true);
+            } else {
+                compile(stmt.value);
+            }
+            emitOp(OpCode.RETURN, line, -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        lastLine = stmt.name.line;
+        if (current.scopeDepth > 0) declareLocal(stmt.name);
+
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitOp(OpCode.NIL, stmt.name.line, 1);
+        }
+
+        defineVariable(stmt.name);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        // The loop variable is scoped to the loop.
+        beginScope();
+        if (stmt.initializer != null) compile(stmt.initializer);
+
+        int loopStart = current.function.chunk.count;
+        int exitJump = -1;
+        int line = lastLine;
+        if (stmt.condition != null) {
+            compile(stmt.condition);
+            line = lastLine;
+            exitJump = emitJump(OpCode.JUMP_IF_FALSE, line);
+            emitOp(OpCode.POP, line, -1);
+        }
+
+        compile(stmt.body);
+        if (stmt.increment != null) {
+            compile(stmt.increment);
+            emitOp(OpCode.POP, lastLine, -1);
+        }
+        emitLoop(loopStart, line);
+
+        if (exitJump != -1) {
+            patchJump(exitJump, line);
+            current.stackDepth++;
+            emitOp(OpCode.POP, line, -1);
+        }
+        endScope(lastLine);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+        int line = lastLine;
+
+        int exitJump = emitJump(OpCode.JUMP_IF_FALSE, line);
+        emitOp(OpCode.POP, line, -1);
+        compile(stmt.body);
+        emitLoop(loopStart, line);
+
+        patchJump(exitJump, line);
+        current.stackDepth++;
+        emitOp(OpCode.POP, line, -1);
+        return null;
+    }
+
+    // Expressions.
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        lastLine = expr.name.line;
+        setVariable(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        compile(expr.left);
+        compile(expr.right);
+
+        int line = expr.operator.line;
+        lastLine = line;
+        switch (expr.operator.type) {
+            case BANG_EQUAL:
+                emitOp(OpCode.NOT_EQUAL, line, -1);
+                break;
+            case EQUAL_EQUAL:
+                emitOp(OpCode.EQUAL, line, -1);
+                break;
+            case GREATER:
+                emitOp(OpCode.GREATER, line, -1);
+                break;
+            case GREATER_EQUAL:
+                emitOp(OpCode.GREATER_EQUAL, line, -1);
+                break;
+            case LESS:
+                emitOp(OpCode.LESS, line, -1);
+                break;
+            case LESS_EQUAL:
+                emitOp(OpCode.LESS_EQUAL, line, -1);
+                break;
+            case PLUS:
+                emitOp(OpCode.ADD, line, -1);
+                break;
+            case MINUS:
+                emitOp(OpCode.SUBTRACT, line, -1);
+                break;
+            case STAR:
+                emitOp(OpCode.MULTIPLY, line, -1);
+                break;
+            case SLASH:
+                emitOp(OpCode.DIVIDE, line, -1);
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        call(expr, false);
+        return null;
+    }
+
+    private void call(Expr.Call expr, boolean tail) {
+        int line = expr.paren.line;
+        boolean invoke = false;
+
+        if (expr.callee instanceof Expr.Get) {
+            // obj.method(args) looks the method up before evaluating the arguments, like the interpreter does, but
+            // calls it with the receiver in slot zero instead of allocating a bound method.
+            Expr.Get get = (Expr.Get) expr.callee;
+            compile(get.object);
+            emitOp(OpCode.GET_METHOD, get.name.line, 1);
+            emitShort(nameConstant(get.name.lexeme(), get.name), get.name.line);
+            invoke = true;
+        } else if (expr.callee instanceof Expr.Super) {
+            Expr.Super superExpr = (Expr.Super) expr.callee;
+            namedVariable("this", superExpr.keyword);
+            namedVariable("super", superExpr.keyword);
+            emitOp(OpCode.GET_SUPER_METHOD, superExpr.method.line, 0);
+            emitShort(nameConstant(superExpr.method.lexeme(), superExpr.method), superExpr.method.line);
+            invoke = true;
+        } else {
+            compile(expr.callee);
+        }
+
+        for (Expr argument : expr.arguments) {
+            compile(argument);
+        }
+
+        int argCount = expr.arguments.size();
+        lastLine = line;
+        if (invoke) {
+            emitOp(tail ? OpCode.TAIL_INVOKE : OpCode.INVOKE, line, -argCount - 1);
+        } else {
+            emitOp(tail ? OpCode.TAIL_CALL : OpCode.CALL, line, -argCount);
+        }
+        emitByte(argCount, line);
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        lastLine = expr.name.line;
+        emitOp(OpCode.GET_PROPERTY, expr.name.line, 0);
+        emitShort(nameConstant(expr.name.lexeme(), expr.name), expr.name.line);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(OpCode.NIL, lastLine, 1);
+        } else if (expr.value == Boolean.TRUE) {
+            emitOp(OpCode.TRUE, lastLine, 1);
+        } else if (expr.value == Boolean.FALSE) {
+            emitOp(OpCode.FALSE, lastLine, 1);
+        } else {
+            // Literals are the one kind of constant a script can pile up without bound, so they get a wide form.
+            Chunk chunk = current.function.chunk;
+            int constant = chunk.addLiteral(expr.value);
+            if (constant != -1) {
+                emitOp(OpCode.CONSTANT, lastLine, 1);
+                emitShort(constant, lastLine);
+            } else {
+                emitOp(OpCode.CONSTANT_LONG, lastLine, 1);
+                if (!chunk.writeLongConstant(expr.value, lastLine)) {
+                    error(lastLine, "Too many constants in one chunk.");
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        int line = expr.operator.line;
+
+        byte op = expr.operator.type == TokenType.OR ? OpCode.JUMP_IF_TRUE : OpCode.JUMP_IF_FALSE;
+        int endJump = emitJump(op, line);
+        emitOp(OpCode.POP, line, -1);
+        compile(expr.right);
+        patchJump(endJump, line);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        int line = expr.name.line;
+        compile(expr.object);
+        // The interpreter rejects a non-instance before it evaluates the value being assigned.
+        emitOp(OpCode.CHECK_INSTANCE, line, 0);
+        compile(expr.value);
+        lastLine = line;
+        emitOp(OpCode.SET_PROPERTY, line, -1);
+        emitShort(nameConstant(expr.name.lexeme(), expr.name), line);
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        namedVariable("this", expr.keyword);
+        namedVariable("super", expr.keyword);
+        lastLine = expr.method.line;
+        emitOp(OpCode.GET_SUPER, expr.method.line, -1);
+        emitShort(nameConstant(expr.method.lexeme(), expr.method), expr.method.line);
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        namedVariable("this", expr.keyword);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        int line = expr.operator.line;
+        lastLine = line;
+        switch (expr.operator.type) {
+            case BANG:
+                emitOp(OpCode.NOT, line, 0);
+                break;
+            case MINUS:
+                emitOp(OpCode.NEGATE, line, 0);
+                break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        namedVariable(expr.name.lexeme(), expr.name);
+        return null;
+    }
+
+    // Functions.
+
+    private void function(Stmt.Function declaration, FunctionType type) {
+        current = new FunctionState(current, new ObjFunction(declaration.name.lexeme()), type);
+        beginScope();
+
+        current.function.arity = declaration.params.size();
+        for (Token param : declaration.params) {
+            declareLocal(param);
+            markInitialized();
+            current.stackDepth++;
+            current.function.maxStack = Math.max(current.function.maxStack, current.stackDepth);
+        }
+
+        for (Stmt statement : declaration.body) {
+            compile(statement);
+        }
+
+        FunctionState state = current;
+        ObjFunction function = endFunction(lastLine);
+        current = state.enclosing;
+
+        int line = declaration.name.line;
+        emitOp(OpCode.CLOSURE, line, 1);
+        emitShort(makeConstant(function, declaration.name), line);
+        for (Upvalue upvalue : state.upvalues) {
+            emitByte(upvalue.isLocal ? 1 : 0, line);
+            emitShort(upvalue.index, line);
+        }
+    }
+
+    private void emitReturn(int line) {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitGetLocal(0, line);
+        } else {
+            emitOp(OpCode.NIL, line, 1);
+        }
+        emitOp(OpCode.RETURN, line, -1);
+    }
+
+    // Variables and scopes.
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope(int line) {
+        current.scopeDepth--;
+
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            if (locals.get(locals.size() - 1).isCaptured) {
+                emitOp(OpCode.CLOSE_UPVALUE, line, -1);
+            } else {
+                emitOp(OpCode.POP, line, -1);
+            }
+            locals.remove(locals.size() - 1);
+        }
+    }
+
+    private void declareLocal(Token name) {
+        if (current.locals.size() >= MAX_LOCALS) {
+            error(name, "Too many local variables in function.");
+            return;
+        }
+
+        // The depth is set once the initializer has been compiled, see markInitialized().
+        current.locals.add(new Local(name.lexeme(), -1));
+    }
+
+    private void markInitialized() {
+        current.locals.get(current.locals.size() - 1).depth = current.scopeDepth;
+    }
+
+    private void defineVariable(Token name) {
+        if (current.scopeDepth > 0) {
+            // The value is already sitting in the local's stack slot.
+            markInitialized();
+            return;
+        }
+
+        emitOp(OpCode.DEFINE_GLOBAL, name.line, -1);
+        emitShort(globalConstant(name), name.line);
+    }
+
+    private void namedVariable(String name, Token token) {
+        int line = token.line;
+        lastLine = line;
+
+        int slot = resolveLocal(current, name);
+        if (slot != -1) {
+            emitGetLocal(slot, line);
+            return;
+        }
+
+        int upvalue = resolveUpvalue(current, name, token);
+        if (upvalue != -1) {
+            emitOp(OpCode.GET_UPVALUE, line, 1);
+            emitByte(upvalue, line);
+            return;
+        }
+
+        emitOp(OpCode.GET_GLOBAL, line, 1);
+        emitShort(globalConstant(token), line);
+    }
+
+    private void setVariable(Token name) {
+        int line = name.line;
+
+        int slot = resolveLocal(current, name.lexeme());
+        if (slot != -1) {
+            if (slot <= 0xff) {
+                emitOp(OpCode.SET_LOCAL, line, 0);
+                emitByte(slot, line);
+            } else {
+                emitOp(OpCode.SET_LOCAL_LONG, line, 0);
+                emitShort(slot, line);
+            }
+            return;
+        }
+
+        int upvalue = resolveUpvalue(current, name.lexeme(), name);
+        if (upvalue != -1) {
+            emitOp(OpCode.SET_UPVALUE, line, 0);
+            emitByte(upvalue, line);
+            return;
+        }
+
+        emitOp(OpCode.SET_GLOBAL, line, 0);
+        emitShort(globalConstant(name), line);
+    }
+
+    private int resolveLocal(FunctionState state, String name) {
+        for (int i = state.locals.size() - 1; i >= 0; i--) {
+            Local local = state.locals.get(i);
+            // Locals still being initialized are invisible; the Resolver has already rejected reading them.
+            if (local.depth != -1 && local.name.equals(name)) return i;
+        }
+        return -1;
+    }
+
+    private int resolveUpvalue(FunctionState state, String name, Token token) {
+        if (state.enclosing == null) return -1;
+
+        int local = resolveLocal(state.enclosing, name);
+        if (local != -1) {
+            state.enclosing.locals.get(local).isCaptured = true;
+            return addUpvalue(state, local, true, token);
+        }
+
+        int upvalue = resolveUpvalue(state.enclosing, name, token);
+        if (upvalue != -1) {
+            return addUpvalue(state, upvalue, false, token);
+        }
+
+        return -1;
+    }
+
+    private int addUpvalue(FunctionState state, int index, boolean isLocal, Token token) {
+        for (int i = 0; i < state.upvalues.size(); i++) {
+            Upvalue upvalue = state.upvalues.get(i);
+            if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+        }
+
+        if (state.upvalues.size() == MAX_UPVALUES) {
+            error(token, "Too many closure variables in function.");
+            return 0;
+        }
+
+        state.upvalues.add(new Upvalue(index, isLocal));
+        return state.upvalues.size() - 1;
+    }
+
+    private void error(Token token, String message) {
+        tok.error(token, message);
+        hadError = true;
+    }
+
+    private void error(int line, String message) {
+        tok.error(line, message);
+        hadError = true;
+    }
+
+    // Emitting bytecode.
+
+    private int globalConstant(Token name) {
+        return makeConstant(vm.global(name.lexeme()), name);
+    }
+
+    private int nameConstant(String name, Token token) {
+        return makeConstant(name, token);
+    }
+
+    private int makeConstant(Object value, Token token) {
+        int constant = current.function.chunk.addConstant(value);
+        if (constant > 0xffff) {
+            error(token, "Too many constants in one chunk.");
+            return 0;
+        }
+        return constant;
+    }
+
+    private void emitOp(byte op, int line, int stackEffect) {
+        current.function.chunk.write(op, line);
+        current.stackDepth += stackEffect;
+        if (current.stackDepth > current.function.maxStack) {
+            current.function.maxStack = current.stackDepth;
+        }
+    }
+
+    private void emitGetLocal(int slot, int line) {
+        if (slot <= 0xff) {
+            emitOp(OpCode.GET_LOCAL, line, 1);
+            emitByte(slot, line);
+        } else {
+            emitOp(OpCode.GET_LOCAL_LONG, line, 1);
+            emitShort(slot, line);
+        }
+    }
+
+    private void emitByte(int b, int line) {
+        current.function.chunk.write((byte) b, line);
+    }
+
+    private void emitShort(int s, int line) {
+        emitByte((s >> 8) & 0xff, line);
+        emitByte(s & 0xff, line);
+    }
+
+    private int emitJump(byte op, int line) {
+        emitOp(op, line, 0);
+        emitShort(0xffff, line);
+        return current.function.chunk.count - 2;
+    }
+
+    private void patchJump(int offset, int line) {
+        // -2 to adjust for the bytecode for the jump offset itself.
+        int jump = current.function.chunk.count - offset - 2;
+        if (jump > 0xffff) {
+            error(line, "Too much code to jump over.");
+        }
+
+        byte[] code = current.function.chunk.code;
+        code[offset] = (byte) ((jump >> 8) & 0xff);
+        code[offset + 1] = (byte) (jump & 0xff);
+    }
+
+    private void emitLoop(int loopStart, int line) {
+        emitOp(OpCode.LOOP, line, 0);
+
+        int offset = current.function.chunk.count - loopStart + 2;
+        if (offset > 0xffff) error(line, "Loop body too large.");
+
+        emitShort(offset, line);
+    }
+}
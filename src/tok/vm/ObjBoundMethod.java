@@ -0,0 +1,21 @@
+package tok.vm;
+
+final class ObjBoundMethod {
+    /**
+     * An ObjBoundMethod is a method that has been accessed off an instance without being called immediately,
+     * e.g. `var f = dog.printer;`. It remembers the receiver that `this` refers to when it is eventually called.
+     */
+
+    final Object receiver;
+    final ObjClosure method;
+
+    ObjBoundMethod(Object receiver, ObjClosure method) {
+        this.receiver = receiver;
+        this.method = method;
+    }
+
+    @Override
+    public String toString() {
+        return method.toString();
+    }
+}
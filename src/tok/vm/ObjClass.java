@@ -0,0 +1,25 @@
+package tok.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+final class ObjClass {
+    /**
+     * ObjClass is the runtime representation of a Tok class in the VM.
+     * Inherited methods are copied down into the subclass when it is defined, so method lookup never walks the
+     * superclass chain.
+     */
+
+    final String name;
+    final Map<String, ObjClosure> methods = new HashMap<>();
+    ObjClosure initializer;
+
+    ObjClass(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
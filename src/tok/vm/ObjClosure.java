@@ -0,0 +1,21 @@
+package tok.vm;
+
+final class ObjClosure {
+    /**
+     * ObjClosure is the runtime representation of a Tok function in the VM.
+     * It pairs an ObjFunction with the upvalues it captured at the point it was declared.
+     */
+
+    final ObjFunction function;
+    final ObjUpvalue[] upvalues;
+
+    ObjClosure(ObjFunction function) {
+        this.function = function;
+        this.upvalues = new ObjUpvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+        return function.toString();
+    }
+}
@@ -0,0 +1,24 @@
+package tok.vm;
+
+final class ObjFunction {
+    /**
+     * ObjFunction is the compiled form of a Tok function: its bytecode plus what the VM needs to set up a frame for it.
+     * The top-level script is compiled into an ObjFunction with no name.
+     */
+
+    final String name;
+    final Chunk chunk = new Chunk();
+    int arity;
+    int upvalueCount;
+    int maxStack;
+
+    ObjFunction(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        if (name == null) return "<script>";
+        return "<fn " + name + ">";
+    }
+}
@@ -0,0 +1,22 @@
+package tok.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+final class ObjInstance {
+    /**
+     * ObjInstance is the runtime representation of an object of a Tok class in the VM.
+     */
+
+    final ObjClass klass;
+    final Map<String, Object> fields = new HashMap<>();
+
+    ObjInstance(ObjClass klass) {
+        this.klass = klass;
+    }
+
+    @Override
+    public String toString() {
+        return klass.name + " instance";
+    }
+}
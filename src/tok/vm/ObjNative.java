@@ -0,0 +1,24 @@
+package tok.vm;
+
+final class ObjNative {
+    /**
+     * ObjNative wraps a function implemented in Java so that Tok code in the VM can call it.
+     */
+
+    interface Function {
+        Object call(Object[] arguments);
+    }
+
+    final int arity;
+    final Function function;
+
+    ObjNative(int arity, Function function) {
+        this.arity = arity;
+        this.function = function;
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn>";
+    }
+}
@@ -0,0 +1,18 @@
+package tok.vm;
+
+final class ObjUpvalue {
+    /**
+     * An ObjUpvalue refers to a local variable captured by a closure.
+     * While the variable is still live on the VM stack the upvalue points at its stack slot; once the variable goes out
+     * of scope the value is moved into the upvalue itself ("closed") and the slot is set to -1.
+     */
+
+    int slot;
+    Object closed;
+    ObjUpvalue next;
+
+    ObjUpvalue(int slot, ObjUpvalue next) {
+        this.slot = slot;
+        this.next = next;
+    }
+}
@@ -0,0 +1,73 @@
+package tok.vm;
+
+final class OpCode {
+    /*
+     * The instruction set of the Tok VM. Every instruction is a single opcode byte, optionally followed by operands:
+     * constant pool and name indices are two bytes (big-endian), local and upvalue slots and argument counts are a
+     * single byte, and jump offsets are two bytes.
+     * The _LONG forms take wider operands for the rare literal or local that does not fit, so generated scripts with
+     * more of them than the short forms can address still run, while everything else keeps the compact encoding.
+     */
+
+    static final byte CONSTANT = 0;         // index16              -> value
+    static final byte NIL = 1;              //                      -> nil
+    static final byte TRUE = 2;             //                      -> true
+    static final byte FALSE = 3;            //                      -> false
+    static final byte POP = 4;              // value                ->
+
+    static final byte GET_LOCAL = 5;        // slot8                -> value
+    static final byte SET_LOCAL = 6;        // slot8, value         -> value
+    static final byte GET_GLOBAL = 7;       // index16              -> value
+    static final byte DEFINE_GLOBAL = 8;    // index16, value       ->
+    static final byte SET_GLOBAL = 9;       // index16, value       -> value
+    static final byte GET_UPVALUE = 10;     // slot8                -> value
+    static final byte SET_UPVALUE = 11;     // slot8, value         -> value
+
+    static final byte GET_PROPERTY = 12;    // name16, instance     -> value
+    static final byte CHECK_INSTANCE = 13;  // object               -> object
+    static final byte SET_PROPERTY = 14;    // name16, inst, value  -> value
+    static final byte GET_SUPER = 15;       // name16, this, super  -> bound method
+
+    static final byte EQUAL = 16;
+    static final byte NOT_EQUAL = 17;
+    static final byte GREATER = 18;
+    static final byte GREATER_EQUAL = 19;
+    static final byte LESS = 20;
+    static final byte LESS_EQUAL = 21;
+    static final byte ADD = 22;
+    static final byte SUBTRACT = 23;
+    static final byte MULTIPLY = 24;
+    static final byte DIVIDE = 25;
+    static final byte NOT = 26;
+    static final byte NEGATE = 27;
+
+    static final byte PRINT = 28;           // value                ->
+    static final byte JUMP = 29;            // offset16
+    static final byte JUMP_IF_FALSE = 30;   // offset16, cond       -> cond
+    static final byte JUMP_IF_TRUE = 31;    // offset16, cond       -> cond
+    static final byte LOOP = 32;            // offset16
+
+    static final byte CALL = 33;            // argc8, callee, args  -> result
+    static final byte GET_METHOD = 34;      // name16, instance     -> callee, receiver
+    static final byte GET_SUPER_METHOD = 35;// name16, this, super  -> method, this
+    static final byte INVOKE = 36;          // argc8, callee, receiver, args -> result
+
+    static final byte CLOSURE = 37;         // index16, (isLocal8, index16)* -> closure
+    static final byte CLOSE_UPVALUE = 38;   // value                ->
+    static final byte RETURN = 39;          // value                ->
+
+    static final byte CLASS = 40;           // name16               -> class
+    static final byte INHERIT = 41;         // super, class         -> class
+    static final byte METHOD = 42;          // name16, class, closure -> class
+
+    // CALL and INVOKE in a return statement: a closure they call takes over the frame of the function returning.
+    static final byte TAIL_CALL = 43;       // argc8, callee, args  -> result
+    static final byte TAIL_INVOKE = 44;     // argc8, callee, receiver, args -> result
+
+    static final byte CONSTANT_LONG = 45;   // index24              -> value
+    static final byte GET_LOCAL_LONG = 46;  // slot16               -> value
+    static final byte SET_LOCAL_LONG = 47;  // slot16, value        -> value
+
+    private OpCode() {
+    }
+}
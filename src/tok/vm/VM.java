@@ -0,0 +1,662 @@
+package tok.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import tok.Stmt;
+import tok.tok;
+
+public class VM {
+    /*
+     * The VM is a stack-based bytecode interpreter for Tok and an alternative to the tree-walking Interpreter.
+     * The resolved AST is compiled into a Chunk of bytecode per function by the Compiler, and executed here in a single
+     * dispatch loop, so evaluating an expression no longer costs a pair of virtual visitor calls per node.
+     *
+     * Its behaviour - values, error messages and the lines they are reported at - matches the Interpreter exactly.
+     */
+
+    private static final int FRAMES_MAX = 8192;
+
+    static final class Global {
+        /*
+         * Globals are resolved to their Global cell at compile time, so reading one at runtime is a field access
+         * rather than a hash table lookup.
+         */
+
+        final String name;
+        Object value;
+        boolean defined = false;
+
+        Global(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class CallFrame {
+        ObjClosure closure;
+        byte[] code;
+        Object[] constants;
+        int ip;
+
+        // The stack slot holding the callee (or the receiver for methods), and the slot the result is returned into.
+        int base;
+        int returnSlot;
+    }
+
+    private static final class RuntimeError extends RuntimeException {
+        int line;
+
+        RuntimeError(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private final Map<String, Global> globals = new HashMap<>();
+
+    private Object[] stack = new Object[256];
+    private int stackTop = 0;
+
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+
+    // Upvalues that still point at live stack slots, sorted by slot with the highest slot first.
+    private ObjUpvalue openUpvalues = null;
+
+    public VM() {
+        defineNative("clock", 0, arguments -> (double) System.currentTimeMillis() / 1000.0);
+    }
+
+    public void interpret(List<Stmt> statements) {
+        ObjFunction script = new Compiler(this).compile(statements);
+        if (script == null) return;
+
+        ObjClosure closure = new ObjClosure(script);
+        stack[stackTop++] = closure;
+        try {
+            call(closure, 0, 0);
+            run();
+        } catch (RuntimeError error) {
+            tok.runtimeError(error.getMessage(), error.line);
+        } finally {
+            resetStack();
+        }
+    }
+
+    Global global(String name) {
+        Global global = globals.get(name);
+        if (global == null) {
+            global = new Global(name);
+            globals.put(name, global);
+        }
+        return global;
+    }
+
+    private void defineNative(String name, int arity, ObjNative.Function function) {
+        Global global = global(name);
+        global.value = new ObjNative(arity, function);
+        global.defined = true;
+    }
+
+    private void run() {
+        CallFrame frame = frames[frameCount - 1];
+        byte[] code = frame.code;
+        Object[] constants = frame.constants;
+        ObjUpvalue[] upvalues = frame.closure.upvalues;
+        int ip = frame.ip;
+        int base = frame.base;
+        Object[] stack = this.stack;
+
+        try {
+            for (; ; ) {
+                switch (code[ip++]) {
+                    case OpCode.CONSTANT:
+                        stack[stackTop++] = constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        break;
+                    case OpCode.CONSTANT_LONG:
+                        stack[stackTop++] = constants[((code[ip] & 0xff) << 16) | ((code[ip + 1] & 0xff) << 8)
+                                | (code[ip + 2] & 0xff)];
+                        ip += 3;
+                        break;
+                    case OpCode.NIL:
+                        stack[stackTop++] = null;
+                        break;
+                    case OpCode.TRUE:
+                        stack[stackTop++] = true;
+                        break;
+                    case OpCode.FALSE:
+                        stack[stackTop++] = false;
+                        break;
+                    case OpCode.POP:
+                        stackTop--;
+                        break;
+
+                    case OpCode.GET_LOCAL:
+                        stack[stackTop++] = stack[base + (code[ip++] & 0xff)];
+                        break;
+                    case OpCode.SET_LOCAL:
+                        stack[base + (code[ip++] & 0xff)] = stack[stackTop - 1];
+                        break;
+                    case OpCode.GET_LOCAL_LONG:
+                        stack[stackTop++] = stack[base + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff))];
+                        ip += 2;
+                        break;
+                    case OpCode.SET_LOCAL_LONG:
+                        stack[base + (((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff))] = stack[stackTop - 1];
+                        ip += 2;
+                        break;
+                    case OpCode.GET_GLOBAL: {
+                        Global global = (Global) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        if (!global.defined) throw error("Undefined variable '" + global.name + "'.");
+                        stack[stackTop++] = global.value;
+                        break;
+                    }
+                    case OpCode.DEFINE_GLOBAL: {
+                        Global global = (Global) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        global.value = stack[--stackTop];
+                        global.defined = true;
+                        break;
+                    }
+                    case OpCode.SET_GLOBAL: {
+                        Global global = (Global) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        if (!global.defined) throw error("Undefined variable '" + global.name + "'.");
+                        global.value = stack[stackTop - 1];
+                        break;
+                    }
+                    case OpCode.GET_UPVALUE: {
+                        ObjUpvalue upvalue = upvalues[code[ip++] & 0xff];
+                        stack[stackTop++] = upvalue.slot >= 0 ? stack[upvalue.slot] : upvalue.closed;
+                        break;
+                    }
+                    case OpCode.SET_UPVALUE: {
+                        ObjUpvalue upvalue = upvalues[code[ip++] & 0xff];
+                        if (upvalue.slot >= 0) {
+                            stack[upvalue.slot] = stack[stackTop - 1];
+                        } else {
+                            upvalue.closed = stack[stackTop - 1];
+                        }
+                        break;
+                    }
+
+                    case OpCode.GET_PROPERTY: {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        Object object = stack[stackTop - 1];
+                        if (!(object instanceof ObjInstance)) throw error("Only instances have properties.");
+
+                        ObjInstance instance = (ObjInstance) object;
+                        Object value = instance.fields.get(name);
+                        if (value != null || instance.fields.containsKey(name)) {
+                            stack[stackTop - 1] = value;
+                            break;
+                        }
+
+                        ObjClosure method = instance.klass.methods.get(name);
+                        if (method == null) throw error("Undefined property '" + name + "'.");
+                        stack[stackTop - 1] = new ObjBoundMethod(instance, method);
+                        break;
+                    }
+                    case OpCode.CHECK_INSTANCE:
+                        if (!(stack[stackTop - 1] instanceof ObjInstance)) throw error("Only instances have fields.");
+                        break;
+                    case OpCode.SET_PROPERTY: {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        Object value = stack[--stackTop];
+                        ((ObjInstance) stack[stackTop - 1]).fields.put(name, value);
+                        stack[stackTop - 1] = value;
+                        break;
+                    }
+                    case OpCode.GET_SUPER: {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        ObjClass superclass = (ObjClass) stack[--stackTop];
+                        ObjClosure method = superclass.methods.get(name);
+                        if (method == null) throw error("Undefined property '" + name + "'.");
+                        stack[stackTop - 1] = new ObjBoundMethod(stack[stackTop - 1], method);
+                        break;
+                    }
+
+                    case OpCode.EQUAL: {
+                        Object b = stack[--stackTop];
+                        stack[stackTop - 1] = isEqual(stack[stackTop - 1], b);
+                        break;
+                    }
+                    case OpCode.NOT_EQUAL: {
+                        Object b = stack[--stackTop];
+                        stack[stackTop - 1] = !isEqual(stack[stackTop - 1], b);
+                        break;
+                    }
+                    case OpCode.GREATER: {
+                        Object b = stack[--stackTop];
+                        Object a = stack[stackTop - 1];
+                        checkNumberOperands(a, b);
+                        stack[stackTop - 1] = (double) a > (double) b;
+                        break;
+                    }
+                    case OpCode.GREATER_EQUAL: {
+                        Object b = stack[--stackTop];
+                        Object a = stack[stackTop - 1];
+                        checkNumberOperands(a, b);
+                        stack[stackTop - 1] = (double) a >= (double) b;
+                        break;
+                    }
+                    case OpCode.LESS: {
+                        Object b = stack[--stackTop];
+                        Object a = stack[stackTop - 1];
+                        checkNumberOperands(a, b);
+                        stack[stackTop - 1] = (double) a < (double) b;
+                        break;
+                    }
+                    case OpCode.LESS_EQUAL: {
+                        Object b = stack[--stackTop];
+                        Object a = stack[stackTop - 1];
+                        checkNumberOperands(a, b);
+                        stack[stackTop - 1] = (double) a <= (double) b;
+                        break;
+                    }
+                    case OpCode.ADD: {
+                        Object b = stack[--stackTop];
+                        Object a = stack[stackTop - 1];
+                        if (a instanceof Double && b instanceof Double) {
+                            stack[stackTop - 1] = (double) a + (double) b;
+                        } else if (a instanceof String && b instanceof String) {
+                            stack[stackTop - 1] = (String) a + (String) b;
+                        } else {
+                            throw error("Operands must be two numbers or two strings.");
+                        }
+                        break;
+                    }
+                    case OpCode.SUBTRACT: {
+                        Object b = stack[--stackTop];
+                        Object a = stack[stackTop - 1];
+                        checkNumberOperands(a, b);
+                        stack[stackTop - 1] = (double) a - (double) b;
+                        break;
+                    }
+                    case OpCode.MULTIPLY: {
+                        Object b = stack[--stackTop];
+                        Object a = stack[stackTop - 1];
+                        checkNumberOperands(a, b);
+                        stack[stackTop - 1] = (double) a * (double) b;
+                        break;
+                    }
+                    case OpCode.DIVIDE: {
+                        Object b = stack[--stackTop];
+                        Object a = stack[stackTop - 1];
+                        checkNumberOperands(a, b);
+                        if ((double) b == 0.0) throw error("Cannot divide by 0.");
+                        stack[stackTop - 1] = (double) a / (double) b;
+                        break;
+                    }
+                    case OpCode.NOT:
+                        stack[stackTop - 1] = !isTruthy(stack[stackTop - 1]);
+                        break;
+                    case OpCode.NEGATE: {
+                        Object a = stack[stackTop - 1];
+                        if (!(a instanceof Double)) throw error("Operand must be a number.");
+                        stack[stackTop - 1] = -(double) a;
+                        break;
+                    }
+
+                    case OpCode.PRINT:
+                        System.out.println(stringify(stack[--stackTop]));
+                        break;
+                    case OpCode.JUMP: {
+                        int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2 + offset;
+                        break;
+                    }
+                    case OpCode.JUMP_IF_FALSE: {
+                        int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        if (!isTruthy(stack[stackTop - 1])) ip += offset;
+                        break;
+                    }
+                    case OpCode.JUMP_IF_TRUE: {
+                        int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2;
+                        if (isTruthy(stack[stackTop - 1])) ip += offset;
+                        break;
+                    }
+                    case OpCode.LOOP: {
+                        int offset = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                        ip += 2 - offset;
+                        break;
+                    }
+
+                    case OpCode.CALL: {
+                        int argCount = code[ip++] & 0xff;
+                        frame.ip = ip;
+                        int calleeSlot = stackTop - argCount - 1;
+                        callValue(stack[calleeSlot], argCount, calleeSlot);
+
+                        frame = frames[frameCount - 1];
+                        code = frame.code;
+                        constants = frame.constants;
+                        upvalues = frame.closure.upvalues;
+                        ip = frame.ip;
+                        base = frame.base;
+                        stack = this.stack;
+                        break;
+                    }
+                    case OpCode.TAIL_CALL: {
+                        int argCount = code[ip++] & 0xff;
+                        frame.ip = ip;
+                        int calleeSlot = stackTop - argCount - 1;
+                        Object callee = stack[calleeSlot];
+                        if (callee instanceof ObjClosure) {
+                            tailCall((ObjClosure) callee, argCount);
+                        } else {
+                            callValue(callee, argCount, calleeSlot);
+                        }
+
+                        frame = frames[frameCount - 1];
+                        code = frame.code;
+                        constants = frame.constants;
+                        upvalues = frame.closure.upvalues;
+                        ip = frame.ip;
+                        base = frame.base;
+                        stack = this.stack;
+                        break;
+                    }
+                    case OpCode.GET_METHOD: {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        Object object = stack[stackTop - 1];
+                        if (!(object instanceof ObjInstance)) throw error("Only instances have properties.");
+
+                        // Leaves [callee, receiver]. A field is called like any other value, so it is its own receiver.
+                        ObjInstance instance = (ObjInstance) object;
+                        Object value = instance.fields.get(name);
+                        if (value != null || instance.fields.containsKey(name)) {
+                            stack[stackTop - 1] = value;
+                            stack[stackTop++] = value;
+                            break;
+                        }
+
+                        ObjClosure method = instance.klass.methods.get(name);
+                        if (method == null) throw error("Undefined property '" + name + "'.");
+                        stack[stackTop - 1] = method;
+                        stack[stackTop++] = instance;
+                        break;
+                    }
+                    case OpCode.GET_SUPER_METHOD: {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        ObjClass superclass = (ObjClass) stack[stackTop - 1];
+                        ObjClosure method = superclass.methods.get(name);
+                        if (method == null) throw error("Undefined property '" + name + "'.");
+                        stack[stackTop - 1] = stack[stackTop - 2];
+                        stack[stackTop - 2] = method;
+                        break;
+                    }
+                    case OpCode.INVOKE: {
+                        int argCount = code[ip++] & 0xff;
+                        frame.ip = ip;
+                        int receiverSlot = stackTop - argCount - 1;
+                        Object callee = stack[receiverSlot - 1];
+                        if (callee instanceof ObjClosure) {
+                            call((ObjClosure) callee, argCount, receiverSlot - 1);
+                        } else {
+                            callValue(stack[receiverSlot], argCount, receiverSlot - 1);
+                        }
+
+                        frame = frames[frameCount - 1];
+                        code = frame.code;
+                        constants = frame.constants;
+                        upvalues = frame.closure.upvalues;
+                        ip = frame.ip;
+                        base = frame.base;
+                        stack = this.stack;
+                        break;
+                    }
+                    case OpCode.TAIL_INVOKE: {
+                        int argCount = code[ip++] & 0xff;
+                        frame.ip = ip;
+                        int receiverSlot = stackTop - argCount - 1;
+                        Object callee = stack[receiverSlot - 1];
+                        if (callee instanceof ObjClosure) {
+                            tailCall((ObjClosure) callee, argCount);
+                        } else {
+                            callValue(stack[receiverSlot], argCount, receiverSlot - 1);
+                        }
+
+                        frame = frames[frameCount - 1];
+                        code = frame.code;
+                        constants = frame.constants;
+                        upvalues = frame.closure.upvalues;
+                        ip = frame.ip;
+                        base = frame.base;
+                        stack = this.stack;
+                        break;
+                    }
+
+                    case OpCode.CLOSURE: {
+                        ObjFunction function = (ObjFunction) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        ObjClosure closure = new ObjClosure(function);
+                        for (int i = 0; i < closure.upvalues.length; i++) {
+                            boolean isLocal = code[ip++] == 1;
+                            int index = ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+                            ip += 2;
+                            closure.upvalues[i] = isLocal ? captureUpvalue(base + index) : upvalues[index];
+                        }
+                        stack[stackTop++] = closure;
+                        break;
+                    }
+                    case OpCode.CLOSE_UPVALUE:
+                        closeUpvalues(stackTop - 1);
+                        stackTop--;
+                        break;
+                    case OpCode.RETURN: {
+                        Object result = stack[--stackTop];
+                        closeUpvalues(base);
+                        frameCount--;
+                        if (frameCount == 0) return;
+
+                        stackTop = frame.returnSlot;
+                        stack[stackTop++] = result;
+
+                        frame = frames[frameCount - 1];
+                        code = frame.code;
+                        constants = frame.constants;
+                        upvalues = frame.closure.upvalues;
+                        ip = frame.ip;
+                        base = frame.base;
+                        break;
+                    }
+
+                    case OpCode.CLASS:
+                        stack[stackTop++] = new ObjClass((String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)]);
+                        ip += 2;
+                        break;
+                    case OpCode.INHERIT: {
+                        ObjClass subclass = (ObjClass) stack[--stackTop];
+                        Object superclass = stack[stackTop - 1];
+                        if (!(superclass instanceof ObjClass)) throw error("Superclass must be a class (duh).");
+
+                        subclass.methods.putAll(((ObjClass) superclass).methods);
+                        subclass.initializer = ((ObjClass) superclass).initializer;
+                        break;
+                    }
+                    case OpCode.METHOD: {
+                        String name = (String) constants[((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff)];
+                        ip += 2;
+                        ObjClosure method = (ObjClosure) stack[--stackTop];
+                        ObjClass klass = (ObjClass) stack[stackTop - 1];
+                        klass.methods.put(name, method);
+                        if (name.equals("init")) klass.initializer = method;
+                        break;
+                    }
+                }
+            }
+        } catch (RuntimeError error) {
+            // Report the error at the line of the instruction that raised it.
+            error.line = frame.closure.function.chunk.lines[ip - 1];
+            throw error;
+        }
+    }
+
+    private void callValue(Object callee, int argCount, int returnSlot) {
+        if (callee instanceof ObjClosure) {
+            call((ObjClosure) callee, argCount, returnSlot);
+        } else if (callee instanceof ObjBoundMethod) {
+            ObjBoundMethod bound = (ObjBoundMethod) callee;
+            stack[stackTop - argCount - 1] = bound.receiver;
+            call(bound.method, argCount, returnSlot);
+        } else if (callee instanceof ObjClass) {
+            ObjClass klass = (ObjClass) callee;
+            ObjInstance instance = new ObjInstance(klass);
+            if (klass.initializer != null) {
+                stack[stackTop - argCount - 1] = instance;
+                call(klass.initializer, argCount, returnSlot);
+            } else {
+                if (argCount != 0) throw error("Expected 0 arguments but got " + argCount + ".");
+                stackTop = returnSlot;
+                stack[stackTop++] = instance;
+            }
+        } else if (callee instanceof ObjNative) {
+            ObjNative function = (ObjNative) callee;
+            if (argCount != function.arity) {
+                throw error("Expected " + function.arity + " arguments but got " + argCount + ".");
+            }
+
+            Object[] arguments = Arrays.copyOfRange(stack, stackTop - argCount, stackTop);
+            Object result = function.function.call(arguments);
+            stackTop = returnSlot;
+            stack[stackTop++] = result;
+        } else {
+            throw error("Can only call functions and classes.");
+        }
+    }
+
+    private void call(ObjClosure closure, int argCount, int returnSlot) {
+        ObjFunction function = closure.function;
+        if (argCount != function.arity) {
+            throw error("Expected " + function.arity + " arguments but got " + argCount + ".");
+        }
+
+        if (frameCount == FRAMES_MAX) throw error("Stack overflow.");
+        if (frameCount == frames.length) frames = Arrays.copyOf(frames, frameCount * 2);
+
+        int base = stackTop - argCount - 1;
+        if (base + function.maxStack > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + function.maxStack));
+        }
+
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frameCount++;
+
+        frame.closure = closure;
+        frame.code = function.chunk.code;
+        frame.constants = function.chunk.constantPool;
+        frame.ip = 0;
+        frame.base = base;
+        frame.returnSlot = returnSlot;
+    }
+
+    // Calls a closure in place of the current frame, with its slot zero and arguments on top of the stack. The callee
+    // returns straight to whoever called the current frame.
+    private void tailCall(ObjClosure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            throw error("Expected " + closure.function.arity + " arguments but got " + argCount + ".");
+        }
+
+        CallFrame frame = frames[frameCount - 1];
+        closeUpvalues(frame.base);
+        System.arraycopy(stack, stackTop - argCount - 1, stack, frame.base, argCount + 1);
+        stackTop = frame.base + argCount + 1;
+        frameCount--;
+        call(closure, argCount, frame.returnSlot);
+    }
+
+    private ObjUpvalue captureUpvalue(int slot) {
+        ObjUpvalue previous = null;
+        ObjUpvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            previous = upvalue;
+            upvalue = upvalue.next;
+        }
+
+        if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+        ObjUpvalue created = new ObjUpvalue(slot, upvalue);
+        if (previous == null) {
+            openUpvalues = created;
+        } else {
+            previous.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            ObjUpvalue upvalue = openUpvalues;
+            upvalue.closed = stack[upvalue.slot];
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+            upvalue.next = null;
+        }
+    }
+
+    private void resetStack() {
+        // Drop every reference into the program that just ran, so that in the REPL a line's compiled code and values
+        // become garbage as soon as nothing defined by it is reachable from a global.
+        Arrays.fill(stack, null);
+        for (CallFrame frame : frames) {
+            if (frame == null) break;
+            frame.closure = null;
+            frame.code = null;
+            frame.constants = null;
+        }
+        stackTop = 0;
+        frameCount = 0;
+        openUpvalues = null;
+    }
+
+    private RuntimeError error(String message) {
+        return new RuntimeError(message);
+    }
+
+    private void checkNumberOperands(Object a, Object b) {
+        if (a instanceof Double && b instanceof Double) return;
+        throw error("Operands must be numbers.");
+    }
+
+    private static boolean isTruthy(Object object) {
+        if (object == null) return false;
+        if (object instanceof Boolean) return (boolean) object;
+        return true;
+    }
+
+    private static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null) return true;
+        if (a == null) return false;
+
+        return a.equals(b);
+    }
+
+    private static String stringify(Object object) {
+        if (object == null) return "nil";
+
+        if (object instanceof Double) {
+            String text = object.toString();
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
+        }
+
+        return object.toString();
+    }
+}
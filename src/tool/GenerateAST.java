@@ -22,29 +22,33 @@ public class GenerateAST {
 
         String outputDir = args[0];
 
+        // Fields after a '|' are not part of the constructor: they are mutable, package-private slots that later passes
+        // such as the Resolver fill in on the node itself. A resolved variable is a depth and a slot: the depth is -1 for
+        // a global, -2 for a local in the current call's frame, and otherwise counts environments outwards.
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
-                "Binary   : Expr left, Token operator, Expr right",
+                "Assign   : Token name, Expr value | int depth = -1, int slot",
+                "Binary   : Expr left, Token operator, Expr right | BinarySpecialization specialization",
                 "Call     : Expr callee, Token paren, List<Expr> arguments",
-                "Get      : Expr object, Token name",
+                "Get      : Expr object, Token name | final PropertyCache cache = new PropertyCache()",
                 "Grouping : Expr expression",
                 "Literal  : Object value",
                 "Logical  : Expr left, Token operator, Expr right",
                 "Set      : Expr object, Token name, Expr value",
-                "Super    : Token keyword, Token method",
-                "This     : Token keyword",
+                "Super    : Token keyword, Token method | int depth = -1, int slot, int thisDepth = -1, int thisSlot",
+                "This     : Token keyword | int depth = -1, int slot",
                 "Unary    : Token operator, Expr right",
-                "Variable : Token name"
+                "Variable : Token name | int depth = -1, int slot"
         ));
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
-                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+                "Block      : List<Stmt> statements | int environmentSize",
+                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods | int depth = -1, int slot",
                 "Expression : Expr expression",
-                "Function   : Token name, List<Token> params, List<Stmt> body",
+                "For        : Stmt initializer, Expr condition, Expr increment, Stmt body | int environmentSize, boolean counted",
+                "Function   : Token name, List<Token> params, List<Stmt> body | int depth = -1, int slot, int frameSize, int environmentSize, int[] capturedParameters",
                 "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
                 "Print      : Expr expression",
                 "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
+                "Var        : Token name, Expr initializer | int depth = -1, int slot",
                 "While      : Expr condition, Stmt body"
         ));
     }
@@ -63,27 +67,28 @@ public class GenerateAST {
         writer.println();
         writer.println("import java.util.List;");
         writer.println();
-        writer.println("abstract class " + baseName + " {");
+        writer.println("public abstract class " + baseName + " {");
 
         defineVisitor(writer, baseName, types);
 
         // The AST classes
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fields = type.split(":")[1].split("\\|");
+            String mutableFields = fields.length > 1 ? fields[1].trim() : null;
+            defineType(writer, baseName, className, fields[0].trim(), mutableFields);
         }
 
         // The base accept() method.
         writer.println();
-        writer.println("  abstract <R> R accept(Visitor<R>  visitor);");
+        writer.println("  public abstract <R> R accept(Visitor<R>  visitor);");
 
         writer.println("}");
         writer.close();
     }
 
     private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
-        writer.println("  interface Visitor<R> {");
+        writer.println("  public interface Visitor<R> {");
 
         for (String type : types) {
             String typeName = type.split(":")[0].trim();
@@ -93,11 +98,12 @@ public class GenerateAST {
         writer.println("  }");
     }
 
-    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
-        writer.println("  static class " + className + " extends " + baseName + " {");
+    private static void defineType(PrintWriter writer, String baseName, String className, String fieldList,
+                                   String mutableFieldList) {
+        writer.println("  public static class " + className + " extends " + baseName + " {");
 
         // Constructor.
-        writer.println("    " + className + "(" + fieldList + ") {");
+        writer.println("    public " + className + "(" + fieldList + ") {");
 
         // Store parameters in fields.
         String[] fields = fieldList.split(", ");
@@ -110,14 +116,21 @@ public class GenerateAST {
         // Visitor Pattern.
         writer.println();
         writer.println("    @Override");
-        writer.println("    <R> R accept(Visitor<R> visitor) {");
+        writer.println("    public <R> R accept(Visitor<R> visitor) {");
         writer.println("      return visitor.visit" + className + baseName + "(this);");
         writer.println("    }");
 
         // Fields.
         writer.println();
         for (String field : fields) {
-            writer.println("    final " + field + ";");
+            writer.println("    public final " + field + ";");
+        }
+
+        if (mutableFieldList != null) {
+            writer.println();
+            for (String field : mutableFieldList.split(", ")) {
+                writer.println("    " + field + ";");
+            }
         }
 
         writer.println("  }");